@@ -0,0 +1,148 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import controller.PixelFlowManager;
+import controller.PixelFlowRegion;
+import model.DefaultSiteTypes;
+import model.SiteSource;
+import model.SiteType;
+import utilities.GridFile;
+
+/**
+ * Builds the simulations measured by the benchmarks. The site types are read from
+ * the grid file of the benchmarked variant (default.csv) and scaled to the grid size
+ * given as "rows x cols".
+ * @author beat
+ *
+ */
+public class BenchmarkGrid {
+
+	public static final String GRID_FILE = System.getProperty("benchmark.grid", "default.csv");
+
+	/**
+	 * Steps run before measuring, so the waves have spread from the sources
+	 */
+	public static final int PRIMING_STEPS = Integer.getInteger("benchmark.primingSteps", 50);
+
+	private static final int WAVE_SAMPLING = 8;
+
+	public static GridFile load(String gridSize) throws FileNotFoundException {
+		String[] dimensions = gridSize.split("x");
+		int rows = Integer.parseInt(dimensions[0].trim());
+		int cols = Integer.parseInt(dimensions[1].trim());
+
+		GridFile gridFile = GridFile.read(new File(GRID_FILE));
+
+		if (gridFile.getRows() == rows && gridFile.getCols() == cols) {
+			return gridFile;
+		}
+
+		return gridFile.scale(rows, cols);
+	}
+
+	public static PixelFlowManager createManager(GridFile gridFile) {
+		SiteType [] siteTypes = DefaultSiteTypes.create();
+		PixelFlowManager manager = new PixelFlowManager(gridFile.getRows(), gridFile.getCols(), siteTypes,
+				siteTypes[DefaultSiteTypes.AIR], DefaultSiteTypes.INITIAL_TEMPERATURE);
+
+		manager.setSiteTypes(gridFile.getSiteTypes());
+
+		for (int i = 0; i < PRIMING_STEPS; i++) {
+			manager.step();
+		}
+
+		return manager;
+	}
+
+	/**
+	 * Creates a single region covering the whole grid
+	 * @param gridFile
+	 * @return
+	 * @throws Exception
+	 */
+	public static PixelFlowRegion createRegion(GridFile gridFile) throws Exception {
+		SiteType [] siteTypes = DefaultSiteTypes.create();
+		double deltaTimePerIteration = getDeltaTimePerIteration(siteTypes);
+
+		PixelFlowRegion region = newRegion(deltaTimePerIteration, siteTypes);
+		region.createSites(0, 0, gridFile.getCols(), gridFile.getRows(), gridFile.getCols(), gridFile.getRows(), false);
+		region.initSites(DefaultSiteTypes.AIR, DefaultSiteTypes.INITIAL_TEMPERATURE, false);
+		setSiteTypes(region, gridFile.getSiteTypes());
+
+		for (int i = 0; i < PRIMING_STEPS; i++) {
+			region.prepareFlowUpdate();
+			region.updateFlows(i * deltaTimePerIteration);
+			region.finishFlowUpdate();
+			region.updateTemperatures();
+		}
+
+		return region;
+	}
+
+	public static double getDeltaTimePerIteration(SiteType [] siteTypes) {
+		long highestSourceFrequency = 0;
+		for (SiteType s : siteTypes) {
+			if (s instanceof SiteSource) {
+				highestSourceFrequency = Math.max(highestSourceFrequency, ((SiteSource) s).getFrequency());
+			}
+		}
+		return 1.0f / (highestSourceFrequency * WAVE_SAMPLING);
+	}
+
+	/**
+	 * The region constructor of the distributed variants also takes the number of cores
+	 * of the host, so the constructor is looked up by its number of parameters.
+	 */
+	private static PixelFlowRegion newRegion(double deltaTimePerIteration, SiteType [] siteTypes) throws Exception {
+		for (Constructor<?> constructor : PixelFlowRegion.class.getConstructors()) {
+			Class<?> [] parameters = constructor.getParameterTypes();
+
+			if (parameters.length == 3) {
+				return (PixelFlowRegion) constructor.newInstance(deltaTimePerIteration, siteTypes, "localhost");
+			} else if (parameters.length == 4) {
+				return (PixelFlowRegion) constructor.newInstance(deltaTimePerIteration, siteTypes, "localhost",
+						Runtime.getRuntime().availableProcessors());
+			}
+		}
+
+		throw new IllegalStateException("No known PixelFlowRegion constructor");
+	}
+
+	/**
+	 * The regions of the distributed variants take the site types as one byte per site,
+	 * column by column, so the method is looked up by its parameter type.
+	 */
+	private static void setSiteTypes(PixelFlowRegion region, int [][] siteTypes) throws Exception {
+		for (Method method : PixelFlowRegion.class.getMethods()) {
+			if (!method.getName().equals("setSiteTypes") || method.getParameterTypes().length != 1) {
+				continue;
+			}
+
+			Class<?> parameter = method.getParameterTypes()[0];
+
+			if (parameter == int[][].class) {
+				method.invoke(region, (Object) siteTypes);
+				return;
+			} else if (parameter == byte[].class) {
+				int height = siteTypes[0].length;
+				byte [] regionTypes = new byte[siteTypes.length * height];
+
+				for (int x = 0, index = 0; x < siteTypes.length; x++) {
+					for (int y = 0; y < height; y++, index++) {
+						regionTypes[index] = (byte) siteTypes[x][y];
+					}
+				}
+
+				method.invoke(region, (Object) regionTypes);
+				return;
+			}
+		}
+
+		throw new IllegalStateException("No known PixelFlowRegion.setSiteTypes method");
+	}
+
+}
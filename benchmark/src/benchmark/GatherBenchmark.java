@@ -0,0 +1,54 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import controller.PixelFlowManager;
+import model.SiteType;
+
+/**
+ * Measures the reads of the whole grid done by the view on every repaint
+ * @author beat
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GatherBenchmark {
+
+	@Param({ "154x300", "215x418", "1000x1000", "4000x4000", "10000x10000" })
+	public String gridSize;
+
+	private PixelFlowManager manager;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		manager = BenchmarkGrid.createManager(BenchmarkGrid.load(gridSize));
+	}
+
+	@Benchmark
+	public double[][] getAllFlows() {
+		return manager.getAllFlows();
+	}
+
+	@Benchmark
+	public SiteType[][] getAllSiteTypes() {
+		return manager.getAllSiteTypes();
+	}
+
+}
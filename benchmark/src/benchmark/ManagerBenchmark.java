@@ -0,0 +1,52 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import controller.PixelFlowManager;
+
+/**
+ * Measures a whole simulation step through the manager, with both step kernels
+ * @author beat
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ManagerBenchmark {
+
+	@Param({ "154x300", "215x418", "1000x1000", "4000x4000", "10000x10000" })
+	public String gridSize;
+
+	@Param({ "true", "false" })
+	public boolean fusedStep;
+
+	private PixelFlowManager manager;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		manager = BenchmarkGrid.createManager(BenchmarkGrid.load(gridSize));
+		manager.setFusedStep(fusedStep);
+	}
+
+	@Benchmark
+	public void step() {
+		manager.step();
+	}
+
+}
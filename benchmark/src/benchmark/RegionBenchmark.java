@@ -0,0 +1,66 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import controller.PixelFlowRegion;
+
+/**
+ * Measures the phases of a step on a single region covering the whole grid
+ * @author beat
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegionBenchmark {
+
+	@Param({ "154x300", "215x418", "1000x1000", "4000x4000", "10000x10000" })
+	public String gridSize;
+
+	private PixelFlowRegion region;
+	private double elapsedTime;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		region = BenchmarkGrid.createRegion(BenchmarkGrid.load(gridSize));
+		elapsedTime = BenchmarkGrid.PRIMING_STEPS
+				* BenchmarkGrid.getDeltaTimePerIteration(model.DefaultSiteTypes.create());
+	}
+
+	@Benchmark
+	public void prepareFlowUpdate() {
+		region.prepareFlowUpdate();
+	}
+
+	@Benchmark
+	public void updateFlows() {
+		region.updateFlows(elapsedTime);
+	}
+
+	@Benchmark
+	public void updateTemperatures() {
+		region.updateTemperatures();
+	}
+
+	@Benchmark
+	public void updateFlowsAndTemperatures() {
+		region.updateFlowsAndTemperatures(elapsedTime);
+	}
+
+}
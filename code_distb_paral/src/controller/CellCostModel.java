@@ -0,0 +1,68 @@
+package controller;
+
+import model.SiteObstacle;
+import model.SiteSource;
+import model.SiteType;
+
+/**
+ * Estimated cost of one step of a cell, per site type. The costs are relative to an
+ * air cell. Air and wall cells take the shortcuts of the scattering, other obstacles
+ * multiply the incoming flows with their scattering matrix and sources evaluate a sine.
+ * @author beat
+ *
+ */
+public class CellCostModel {
+
+	public static final double PURE_OBSTACLE_COST = 1.0;
+	public static final double OBSTACLE_COST = 1.3;
+	public static final double SOURCE_COST = 1.8;
+
+	private final double [] costs;
+
+	/**
+	 * Creates the default costs of the given site types
+	 * @param siteTypes
+	 */
+	public CellCostModel(SiteType[] siteTypes) {
+		costs = new double[siteTypes.length];
+
+		for(int i = 0; i < siteTypes.length; i++) {
+			costs[i] = getDefaultCost(siteTypes[i]);
+		}
+	}
+
+	private static double getDefaultCost(SiteType siteType) {
+		if(siteType instanceof SiteSource) {
+			return SOURCE_COST;
+		}
+
+		SiteObstacle so = (SiteObstacle) siteType;
+
+		if(so.isPureAir() || so.isPureWall()) {
+			return PURE_OBSTACLE_COST;
+		}
+
+		return OBSTACLE_COST;
+	}
+
+	public double getCost(int typeIndex) {
+		return costs[typeIndex];
+	}
+
+	public void setCost(int typeIndex, double cost) {
+		if(cost <= 0) {
+			throw new IllegalArgumentException("The cost of a cell must be positive");
+		}
+
+		costs[typeIndex] = cost;
+	}
+
+	/**
+	 * Returns the costs indexed by type index
+	 * @return
+	 */
+	public double[] getCosts() {
+		return costs;
+	}
+
+}
@@ -0,0 +1,58 @@
+package controller;
+
+/**
+ * A machine the regions of the simulation can be placed on
+ * @author beat
+ *
+ */
+public class ComputeNode {
+
+	private final static String NODE_SEP = ",";
+	private final static String CORES_SEP = ":";
+
+	private final String host;
+	private final int cores;
+
+	public ComputeNode(String host, int cores) {
+		if(cores < 1) {
+			throw new IllegalArgumentException("A node needs at least one core: " + host);
+		}
+
+		this.host = host;
+		this.cores = cores;
+	}
+
+	/**
+	 * Parses a node list of the form "host:cores,host:cores". The number of cores
+	 * can be omitted, in which case one core is used.
+	 * @param nodes
+	 * @return
+	 */
+	public static ComputeNode[] parse(String nodes) {
+		String [] values = nodes.split(NODE_SEP);
+		ComputeNode [] result = new ComputeNode[values.length];
+
+		for(int i = 0; i < values.length; i++) {
+			String [] node = values[i].trim().split(CORES_SEP);
+			int cores = node.length > 1 ? Integer.parseInt(node[1].trim()) : 1;
+
+			result[i] = new ComputeNode(node[0].trim(), cores);
+		}
+
+		return result;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getCores() {
+		return cores;
+	}
+
+	@Override
+	public String toString() {
+		return host + CORES_SEP + cores;
+	}
+
+}
@@ -0,0 +1,261 @@
+package controller;
+
+import java.util.Arrays;
+
+/**
+ * A tiling of the grid into regionCols x regionRows regions. Region [x][y] covers the
+ * columns colBounds[x] to colBounds[x + 1] (exclusive) and the rows rowBounds[y] to
+ * rowBounds[y + 1] (exclusive) and is placed on the node [x][y].
+ * @author beat
+ *
+ */
+public class Decomposition {
+
+	private final int regionCols, regionRows;
+	private final ComputeNode [][] nodes;
+
+	private int [] colBounds;
+	private int [] rowBounds;
+
+	/**
+	 * Creates a tiling of the given nodes, the nodes are placed column by column
+	 * @param regionCols
+	 * @param regionRows
+	 * @param nodes
+	 */
+	public Decomposition(int regionCols, int regionRows, ComputeNode[] nodes) {
+		if(regionCols * regionRows != nodes.length) {
+			throw new IllegalArgumentException("A " + regionCols + " x " + regionRows + " tiling needs "
+					+ regionCols * regionRows + " nodes, got " + nodes.length);
+		}
+
+		this.regionCols = regionCols;
+		this.regionRows = regionRows;
+		this.nodes = new ComputeNode[regionCols][regionRows];
+
+		int index = 0;
+		for(int x = 0; x < regionCols; x++) {
+			for(int y = 0; y < regionRows; y++) {
+				this.nodes[x][y] = nodes[index++];
+			}
+		}
+	}
+
+	/**
+	 * Splits the given grid size. The share of each column (row) of regions is
+	 * proportional to the number of cores of its nodes.
+	 * @param rows
+	 * @param cols
+	 */
+	public void split(int rows, int cols) {
+		setBounds(split(cols, getColWeights()), split(rows, getRowWeights()));
+	}
+
+	/**
+	 * Places the cuts so that the share of the costs of each column (row) of regions is
+	 * proportional to the number of cores of its nodes.
+	 * @param colCosts estimated cost of each column of the grid
+	 * @param rowCosts estimated cost of each row of the grid
+	 */
+	public void balance(double[] colCosts, double[] rowCosts) {
+		setBounds(cut(colCosts, getColWeights()), cut(rowCosts, getRowWeights()));
+	}
+
+	private double[] getColWeights() {
+		double [] weights = new double[regionCols];
+
+		for(int x = 0; x < regionCols; x++) {
+			for(int y = 0; y < regionRows; y++) {
+				weights[x] += nodes[x][y].getCores();
+			}
+		}
+
+		return weights;
+	}
+
+	private double[] getRowWeights() {
+		double [] weights = new double[regionRows];
+
+		for(int x = 0; x < regionCols; x++) {
+			for(int y = 0; y < regionRows; y++) {
+				weights[y] += nodes[x][y].getCores();
+			}
+		}
+
+		return weights;
+	}
+
+	/**
+	 * Cuts the given length in parts proportional to the weights
+	 * @param length
+	 * @param weights
+	 * @return the bounds of the parts, starting with 0 and ending with length
+	 */
+	static int[] split(int length, double[] weights) {
+		double total = 0;
+		for(double weight : weights) {
+			total += weight;
+		}
+
+		int [] bounds = new int[weights.length + 1];
+		double sum = 0;
+
+		for(int i = 1; i < weights.length; i++) {
+			sum += weights[i - 1];
+			bounds[i] = (int) (length * sum / total);
+		}
+		bounds[weights.length] = length;
+
+		return bounds;
+	}
+
+	/**
+	 * Cuts the given costs in parts whose sums are proportional to the weights. Each cut
+	 * is placed on the cell boundary closest to its target, no part is left empty if
+	 * there are enough cells.
+	 * @param costs
+	 * @param weights
+	 * @return the bounds of the parts, starting with 0 and ending with the number of costs
+	 */
+	static int[] cut(double[] costs, double[] weights) {
+		int length = costs.length;
+		double [] prefix = new double[length + 1];
+
+		for(int i = 0; i < length; i++) {
+			prefix[i + 1] = prefix[i] + costs[i];
+		}
+
+		double totalWeight = 0;
+		for(double weight : weights) {
+			totalWeight += weight;
+		}
+
+		int [] bounds = new int[weights.length + 1];
+		double weightSum = 0;
+		int cut = 0;
+
+		for(int i = 1; i < weights.length; i++) {
+			weightSum += weights[i - 1];
+			double target = prefix[length] * weightSum / totalWeight;
+
+			while(cut < length && Math.abs(prefix[cut + 1] - target) <= Math.abs(prefix[cut] - target)) {
+				cut++;
+			}
+
+			if(length >= weights.length) {
+				cut = Math.max(cut, bounds[i - 1] + 1);
+				cut = Math.min(cut, length - (weights.length - i));
+			}
+
+			bounds[i] = cut;
+		}
+		bounds[weights.length] = length;
+
+		return bounds;
+	}
+
+	public void setBounds(int[] colBounds, int[] rowBounds) {
+		if(colBounds.length != regionCols + 1 || rowBounds.length != regionRows + 1) {
+			throw new IllegalArgumentException("Bounds do not match a " + regionCols + " x " + regionRows + " tiling");
+		}
+
+		this.colBounds = colBounds;
+		this.rowBounds = rowBounds;
+	}
+
+	/**
+	 * Returns true if the regions have the given bounds
+	 * @param colBounds
+	 * @param rowBounds
+	 * @return
+	 */
+	public boolean hasBounds(int[] colBounds, int[] rowBounds) {
+		return Arrays.equals(this.colBounds, colBounds) && Arrays.equals(this.rowBounds, rowBounds);
+	}
+
+	public int[] getColBounds() {
+		return colBounds.clone();
+	}
+
+	public int[] getRowBounds() {
+		return rowBounds.clone();
+	}
+
+	public int getRegionCols() {
+		return regionCols;
+	}
+
+	public int getRegionRows() {
+		return regionRows;
+	}
+
+	public ComputeNode getNode(int x, int y) {
+		return nodes[x][y];
+	}
+
+	/**
+	 * First column of the regions [x][*]
+	 * @param x
+	 * @return
+	 */
+	public int getColStart(int x) {
+		return colBounds[x];
+	}
+
+	/**
+	 * First row of the regions [*][y]
+	 * @param y
+	 * @return
+	 */
+	public int getRowStart(int y) {
+		return rowBounds[y];
+	}
+
+	public int getWidth(int x) {
+		return colBounds[x + 1] - colBounds[x];
+	}
+
+	public int getHeight(int y) {
+		return rowBounds[y + 1] - rowBounds[y];
+	}
+
+	/**
+	 * Returns x of the regions [x][*] containing the given column
+	 * @param col
+	 * @return
+	 */
+	public int getRegionCol(int col) {
+		return find(colBounds, col);
+	}
+
+	/**
+	 * Returns y of the regions [*][y] containing the given row
+	 * @param row
+	 * @return
+	 */
+	public int getRegionRow(int row) {
+		return find(rowBounds, row);
+	}
+
+	private static int find(int[] bounds, int value) {
+		int index = Arrays.binarySearch(bounds, 0, bounds.length - 1, value);
+
+		if(index < 0) {
+			return -index - 2;
+		}
+
+		// Empty parts share their start with the next one
+		while(index + 1 < bounds.length - 1 && bounds[index + 1] == value) {
+			index++;
+		}
+
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return regionCols + " x " + regionRows + " regions, columns " + Arrays.toString(colBounds)
+				+ ", rows " + Arrays.toString(rowBounds);
+	}
+
+}
@@ -1,5 +1,6 @@
 package controller;
 
+import model.GridSnapshot;
 import model.Site;
 import model.SiteType;
 
@@ -9,6 +10,23 @@ public interface IPixelFlowManager {
 	 * Runs one simulation step
 	 */
 	void step();
+
+	/**
+	 * Runs the given number of simulation steps. The distributed regions compute them without
+	 * a call of the manager per step, which only waits for the end of the last one.
+	 * @param steps
+	 */
+	void step(int steps);
+	
+	/**
+	 * Select how a step is computed. If set, flows and temperatures are computed in a single
+	 * sweep over the grid, otherwise all flows are computed before all temperatures. Both
+	 * give the same results.
+	 * @param fusedStep
+	 */
+	void setFusedStep(boolean fusedStep);
+	
+	boolean isFusedStep();
 	
 	/**
 	 * Returns the flow of all sites on the grid
@@ -48,10 +66,25 @@ public interface IPixelFlowManager {
 	 */
 	SiteType [][] getAllSiteTypes();
 
+	/**
+	 * Returns the state of all sites after the last step, gathered with a single call per
+	 * region. The per-position getters read from the same snapshot.
+	 * @return
+	 */
+	GridSnapshot getSnapshot();
+
 	float getTemperatureAtPosition(int row, int col);
 
 	SiteType getSiteType(int row, int col);
 
+	/**
+	 * Returns the index of the type of the site at the given position
+	 * @param row
+	 * @param col
+	 * @return
+	 */
+	int getSiteTypeIndex(int row, int col);
+
 	double getDeltaTimePerIteration();
 
 	double getElapsedTime();
@@ -70,4 +103,12 @@ public interface IPixelFlowManager {
 
 	void setSiteTypes(int[][] siteTypes);
 
+	/**
+	 * Apply a batch of site type changes. Every region receives the changes of its sites
+	 * in a single call. While another thread computes steps, the changes are copied and
+	 * only applied once the steps are done.
+	 * @param edits
+	 */
+	void applySiteTypeEdits(SiteTypeEdits edits);
+
 }
@@ -4,9 +4,11 @@ import java.util.Arrays;
 import java.util.List;
 
 import controller.PixelFlowRegion.Direction;
+import model.GridSnapshot;
 import model.Site;
 import model.SiteSource;
 import model.SiteType;
+import model.WireFormat;
 
 import ch.icosys.popjava.core.annotation.POPClass;
 import ch.icosys.popjava.core.util.Configuration;
@@ -27,12 +29,50 @@ import ch.icosys.popjava.core.util.Configuration;
     private final double maxFlow;
     private final float initialTemperature;
     private long iterations = 0;
-
-    private final static int DIV_COL = 2;
-    private final static int DIV_ROW = 2;
+    private boolean fusedStep = true;
+    private boolean singlePrecisionTransfers = false;
+    private boolean singlePrecisionFlows = false;
+
+    private final static int DEFAULT_REBALANCE_EDITS = 1000;
+
+    private final CellCostModel costModel;
+    private boolean loadBalancing = true;
+    private int rebalanceEdits = DEFAULT_REBALANCE_EDITS;
+    private int editsSinceBalance = 0;
+
+    // Site type changes made while steps are computed, for example by the event thread while
+    // the simulation thread computes. They are only sent to the regions once the steps are
+    // done, so that a step never sees the types or the bounds of the regions change.
+    // A whole grid of site types set meanwhile is queued too, the queued edits made after it
+    // are applied on top of it. stepping, queuedSiteTypes and queuedEdits are guarded by editLock.
+    private final Object editLock = new Object();
+    private final SiteTypeEdits queuedEdits = new SiteTypeEdits();
+    private int [][] queuedSiteTypes;
+    private boolean stepping = false;
+
+    // Incremented by every change of the site types. The site types of the whole grid are
+    // only gathered from the regions again when this version differs from the cached one.
+    private volatile long siteTypeVersion = 0;
+    private long cachedSiteTypeVersion = -1;
+    private SiteType [][] cachedSiteTypes;
+
+    // State of all sites, gathered again after a step or a change of the site types
+    private GridSnapshot snapshot;
+    private long snapshotSiteTypeVersion = -1;
+
+    private int haloDepth = 1;
+
+    private final static ComputeNode [] DEFAULT_NODES = {
+    		new ComputeNode("grid61", 16),
+    		new ComputeNode("grid62", 16),
+    		new ComputeNode("grid63", 16),
+    		new ComputeNode("grid64", 16)
+    };
+    //private final static ComputeNode [] DEFAULT_NODES = ComputeNode.parse("localhost:4,localhost:4,localhost:4,localhost:4");
 
     private int rows, cols;
 
+    private final Decomposition decomposition;
     private final PixelFlowRegion [][] regions;
 
     public PixelFlowManager(
@@ -41,29 +81,40 @@ import ch.icosys.popjava.core.util.Configuration;
             SiteType[] siteTypesArray,
             SiteType defaultSiteType,
             float initialTemperature){
+        this(rows, cols, siteTypesArray, defaultSiteType, initialTemperature, DEFAULT_NODES);
+    }
 
-        String[] hosts = {"grid61","grid62","grid63","grid64"};
-        //String[] hosts ={"localhost","localhost","localhost","localhost"};
+    /**
+     * Creates a simulation with one region per node. The tiling of the grid is
+     * chosen by the {@link DecompositionPlanner}.
+     */
+    public PixelFlowManager(
+            int rows,
+            int cols,
+            SiteType[] siteTypesArray,
+            SiteType defaultSiteType,
+            float initialTemperature,
+            ComputeNode[] nodes){
 
-        int[] core = {16,16,16,16};
         this.siteTypes = Arrays.asList(siteTypesArray);
         this.defaultSiteTypeIndex = siteTypes.indexOf(defaultSiteType);
         this.initialTemperature = initialTemperature;
         this.deltaTimePerIteration = computeDeltaTimePerIteration();
         this.maxFlow = computeMaxFlow();
+        this.costModel = new CellCostModel(siteTypesArray);
 
     	this.rows = rows;
     	this.cols = cols;
 
-    	regions = new PixelFlowRegion[DIV_COL][DIV_ROW];
-      int index = 0;
-      for(int x = 0; x < regions.length; x++) {
-        for(int y = 0; y < regions[x].length; y++) {
-          regions[x][y] = new PixelFlowRegion(deltaTimePerIteration, siteTypes.toArray(new SiteType[0]), hosts[index],core[index]);
-          index++;
-        }
-      }
+    	decomposition = new DecompositionPlanner(nodes).plan(rows, cols);
+    	regions = new PixelFlowRegion[decomposition.getRegionCols()][decomposition.getRegionRows()];
 
+        for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		ComputeNode node = decomposition.getNode(x, y);
+        		regions[x][y] = new PixelFlowRegion(deltaTimePerIteration, siteTypes.toArray(new SiteType[0]), node.getHost(), node.getCores());
+        	}
+        }
 
         for(int x = 0; x < regions.length; x++) {
         	for(int y = 0; y < regions[x].length; y++) {
@@ -119,62 +170,323 @@ import ch.icosys.popjava.core.util.Configuration;
 	}
 
     private void initRegions(int rows, int cols, boolean copy) {
+		int [] previousColBounds = decomposition.getColBounds();
+		int [] previousRowBounds = decomposition.getRowBounds();
+		boolean resized = previousColBounds[previousColBounds.length - 1] != cols
+				|| previousRowBounds[previousRowBounds.length - 1] != rows;
 
-    	int rowChunk = rows / DIV_ROW;
-		int colChunk = cols / DIV_COL;
 		this.rows = rows;
 		this.cols = cols;
 
+		if(!copy) {
+			decomposition.split(rows, cols);
+
+			for(int x = 0; x < regions.length; x++) {
+	        	for(int y = 0; y < regions[x].length; y++) {
+	        		regions[x][y].createSites(decomposition.getColStart(x), decomposition.getRowStart(y),
+	        				decomposition.getWidth(x), decomposition.getHeight(y), cols, rows, false);
+	        	}
+			}
+		}else {
+			// Keep the current cuts if the size did not change, the cells are moved to their new region
+			if(resized) {
+				decomposition.split(rows, cols);
+			}
+
+			moveRegions(previousColBounds, previousRowBounds);
+		}
+    }
+
+    /**
+     * Moves the regions to the current bounds of the decomposition. All cells which are
+     * on the grid before and after the move keep their state.
+     * @param previousColBounds the column bounds the regions currently have
+     * @param previousRowBounds the row bounds the regions currently have
+     */
+    private void moveRegions(int[] previousColBounds, int[] previousRowBounds) {
 		for(int x = 0; x < regions.length; x++) {
         	for(int y = 0; y < regions[x].length; y++) {
-        		int width = colChunk;
+        		regions[x][y].moveSites(decomposition.getColStart(x), decomposition.getRowStart(y),
+        				decomposition.getWidth(x), decomposition.getHeight(y), cols, rows);
+        	}
+		}
 
-        		if(x == regions.length - 1) {
-        			width = cols - x * colChunk;
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		int colStart = decomposition.getColStart(x);
+        		int colEnd = colStart + decomposition.getWidth(x);
+        		int rowStart = decomposition.getRowStart(y);
+        		int rowEnd = rowStart + decomposition.getHeight(y);
+
+        		for(int previousX = 0; previousX < previousColBounds.length - 1; previousX++) {
+        			for(int previousY = 0; previousY < previousRowBounds.length - 1; previousY++) {
+        				int blockX = Math.max(colStart, previousColBounds[previousX]);
+        				int blockY = Math.max(rowStart, previousRowBounds[previousY]);
+        				int blockWidth = Math.min(colEnd, previousColBounds[previousX + 1]) - blockX;
+        				int blockHeight = Math.min(rowEnd, previousRowBounds[previousY + 1]) - blockY;
+
+        				if(blockWidth > 0 && blockHeight > 0) {
+        					regions[x][y].setSites(regions[previousX][previousY].getPreviousSites(blockX, blockY, blockWidth, blockHeight),
+        							blockX, blockY);
+        				}
+        			}
         		}
+        	}
+		}
 
-        		int height = rowChunk;
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		regions[x][y].finishMoveSites();
+        	}
+		}
+    }
 
-        		if(y == regions[x].length - 1) {
-        			height = rows - y * rowChunk;
-        		}
+    /**
+     * Moves the cuts between the regions so that every region gets the same estimated
+     * work per core, according to the current site types and the cost model. The state
+     * of all cells is kept.
+     */
+    public void rebalance() {
+    	editsSinceBalance = 0;
+
+    	double [] colCosts = new double[cols];
+    	double [] rowCosts = new double[rows];
 
-        		regions[x][y].createSites(x * colChunk, y * rowChunk, width, height, cols, rows, copy);
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		double [][] costs = regions[x][y].getCosts(costModel.getCosts());
+        		int colStart = decomposition.getColStart(x);
+        		int rowStart = decomposition.getRowStart(y);
+
+        		for(int i = 0; i < costs[0].length; i++) {
+        			colCosts[colStart + i] += costs[0][i];
+        		}
+        		for(int i = 0; i < costs[1].length; i++) {
+        			rowCosts[rowStart + i] += costs[1][i];
+        		}
         	}
 		}
+
+		int [] previousColBounds = decomposition.getColBounds();
+		int [] previousRowBounds = decomposition.getRowBounds();
+
+		decomposition.balance(colCosts, rowCosts);
+
+		if(!decomposition.hasBounds(previousColBounds, previousRowBounds)) {
+			moveRegions(previousColBounds, previousRowBounds);
+		}
+    }
+
+    /**
+     * If set, the regions are rebalanced whenever all site types are set and after
+     * every getRebalanceEdits() single site type changes
+     * @param loadBalancing
+     */
+    public void setLoadBalancing(boolean loadBalancing) {
+    	this.loadBalancing = loadBalancing;
+    }
+
+    public boolean isLoadBalancing() {
+    	return loadBalancing;
+    }
+
+    /**
+     * Number of single site type changes after which the regions are rebalanced
+     * @param rebalanceEdits
+     */
+    public void setRebalanceEdits(int rebalanceEdits) {
+    	this.rebalanceEdits = rebalanceEdits;
+    }
+
+    public int getRebalanceEdits() {
+    	return rebalanceEdits;
+    }
+
+    public CellCostModel getCostModel() {
+    	return costModel;
+    }
+
+    /**
+     * Number of ghost layers kept around each region by {@link #step(int)}. The regions
+     * exchange that many layers once every haloDepth steps instead of their edges every
+     * step, and compute the ghost cells of their neighbours in between. Deeper halos save
+     * messages on a slow network at the cost of redundant computations.
+     * @param haloDepth
+     */
+    public void setHaloDepth(int haloDepth) {
+    	if(haloDepth < 1) {
+    		throw new IllegalArgumentException("The halo depth must be at least 1");
+    	}
+
+    	this.haloDepth = haloDepth;
+    }
+
+    public int getHaloDepth() {
+    	return haloDepth;
+    }
+
+    /**
+     * Releases all regions, see {@link PixelFlowRegion#release()}. The manager cannot be
+     * used afterwards.
+     */
+    public void release() {
+    	for(int x = 0; x < regions.length; x++) {
+    		for(int y = 0; y < regions[x].length; y++) {
+    			regions[x][y].release();
+    		}
+    	}
+
+    	snapshot = null;
+    	cachedSiteTypes = null;
+    }
+
+    /**
+     * Returns the halo depth used for the given number of steps. The ghost layers of a
+     * region are taken from its direct neighbours, so the halo can not be deeper than the
+     * narrowest region.
+     * @param steps
+     * @return
+     */
+    private int getHaloDepth(int steps) {
+    	int depth = Math.min(haloDepth, steps);
+
+    	for(int x = 0; x < decomposition.getRegionCols(); x++) {
+    		depth = Math.min(depth, decomposition.getWidth(x));
+    	}
+    	for(int y = 0; y < decomposition.getRegionRows(); y++) {
+    		depth = Math.min(depth, decomposition.getHeight(y));
+    	}
+
+    	return Math.max(depth, 1);
+    }
+
+    /**
+     * Returns the tiling of the grid into regions
+     * @return
+     */
+    public Decomposition getDecomposition() {
+    	return decomposition;
     }
 
     public void step() {
-		updateFlows();
-		updateTemperatures();
-		iterations++;
+    	step(1);
+	}
+
+	/**
+	 * Mark the start of steps, the site type changes are queued until {@link #finishSteps()}
+	 */
+	private void startSteps() {
+		synchronized (editLock) {
+			stepping = true;
+		}
 	}
 
-	private void updateFlows() {
+	/**
+	 * Mark the end of steps and send the site type changes queued meanwhile to the regions
+	 */
+	private void finishSteps() {
+		synchronized (editLock) {
+			stepping = false;
+
+			if(queuedSiteTypes != null) {
+				sendSiteTypes(queuedSiteTypes);
+				queuedSiteTypes = null;
+			}
+
+			if(!queuedEdits.isEmpty()) {
+				sendSiteTypeEdits(queuedEdits);
+				queuedEdits.clear();
+			}
+		}
+	}
+
+	@Override
+	public void step(int steps) {
+		startSteps();
+		try {
+			computeSteps(steps);
+		} finally {
+			finishSteps();
+		}
+	}
+
+	private void computeSteps(int steps) {
+    	if(loadBalancing && editsSinceBalance >= rebalanceEdits) {
+    		rebalance();
+    	}
+
+    	int depth = getHaloDepth(steps);
+
+    	// Every region computes the steps on its own and exchanges the edges directly with
+    	// its neighbours, the manager only waits for the end of the last step
 		for(int x = 0; x < regions.length; x++) {
         	for(int y = 0; y < regions[x].length; y++) {
-        		regions[x][y].prepareFlowUpdate();
+        		regions[x][y].runSteps(iterations, steps, fusedStep, depth);
         	}
 		}
 
 		for(int x = 0; x < regions.length; x++) {
         	for(int y = 0; y < regions[x].length; y++) {
-        		regions[x][y].updateFlows(getElapsedTime());
+        		regions[x][y].awaitStep(iterations + steps - 1);
         	}
 		}
+
+		iterations += steps;
+	}
+
+	@Override
+	public void setFusedStep(boolean fusedStep) {
+		this.fusedStep = fusedStep;
+	}
+
+	@Override
+	public boolean isFusedStep() {
+		return fusedStep;
+	}
+
+	/**
+	 * If set, the regions send their flows with single precision, to each other and to the
+	 * manager. The messages get smaller, but the flows received over the edges of the
+	 * regions are rounded to floats, so the results differ slightly from a single region.
+	 * @param singlePrecisionTransfers
+	 */
+	public void setSinglePrecisionTransfers(boolean singlePrecisionTransfers) {
+		this.singlePrecisionTransfers = singlePrecisionTransfers;
+
 		for(int x = 0; x < regions.length; x++) {
         	for(int y = 0; y < regions[x].length; y++) {
-        		regions[x][y].finishFlowUpdate();
+        		regions[x][y].setSinglePrecisionTransfers(singlePrecisionTransfers);
         	}
 		}
 	}
 
-	private void updateTemperatures() {
+	public boolean isSinglePrecisionTransfers() {
+		return singlePrecisionTransfers;
+	}
+
+	/**
+	 * If set, the regions store the flows as floats instead of doubles. A step reads and
+	 * writes half as much memory, the flows are rounded to floats after every step. As the
+	 * flows are floats already, they are also sent with single precision.
+	 * @param singlePrecisionFlows
+	 */
+	public void setSinglePrecisionFlows(boolean singlePrecisionFlows) {
+		this.singlePrecisionFlows = singlePrecisionFlows;
+		snapshot = null;
+
 		for(int x = 0; x < regions.length; x++) {
         	for(int y = 0; y < regions[x].length; y++) {
-        		regions[x][y].updateTemperatures();
+        		regions[x][y].setSinglePrecisionFlows(singlePrecisionFlows);
         	}
 		}
+
+		if(singlePrecisionFlows) {
+			setSinglePrecisionTransfers(true);
+		}
+	}
+
+	public boolean isSinglePrecisionFlows() {
+		return singlePrecisionFlows;
 	}
 
 	@Override
@@ -189,6 +501,7 @@ import ch.icosys.popjava.core.util.Configuration;
 
 	@Override
 	public void reinitializeSites(int rows, int cols, boolean copy) {
+		siteTypeVersion++;
 		this.rows = rows;
 		this.cols = cols;
 
@@ -199,43 +512,93 @@ import ch.icosys.popjava.core.util.Configuration;
         		regions[x][y].initSites(defaultSiteTypeIndex, initialTemperature, copy);
         	}
 		}
+
+		if(loadBalancing) {
+			rebalance();
+		}
 	}
 
 	private PixelFlowRegion getRegionForPosition(int row, int col) {
-		int rowChunk = rows / DIV_ROW;
-		int colChunk = cols / DIV_COL;
+		return regions[decomposition.getRegionCol(col)][decomposition.getRegionRow(row)];
+	}
+
+	@Override
+	public GridSnapshot getSnapshot() {
+		if(snapshot == null || snapshot.getStep() != iterations || snapshotSiteTypeVersion != siteTypeVersion) {
+			long version = siteTypeVersion;
+			GridSnapshot snapshot = new GridSnapshot(rows, cols, iterations, getElapsedTime(), siteTypes);
+
+			for(int x = 0; x < regions.length; x++) {
+				for(int y = 0; y < regions[x].length; y++) {
+					WireFormat.decodeBlock(regions[x][y].getSiteBlock(), snapshot,
+							decomposition.getColStart(x), decomposition.getRowStart(y));
+				}
+			}
+			snapshot.computeGlobalFlows();
 
-		int x = Math.min(col / colChunk, regions.length - 1);
-		int y = Math.min(row / rowChunk, regions[0].length - 1);
+			this.snapshot = snapshot;
+			snapshotSiteTypeVersion = version;
+		}
 
-		return regions[x][y];
+		return snapshot;
 	}
 
 	@Override
 	public float getTemperatureAtPosition(int row, int col) {
-		return getRegionForPosition(row, col).getSite(row, col).getTemperature();
+		return getSnapshot().getTemperature(row, col);
 	}
 
 	@Override
 	public SiteType getSiteType(int row, int col) {
-		return siteTypes.get(getRegionForPosition(row, col).getSite(row, col).getTypeIndex());
+		return getAllSiteTypes()[col][row];
+	}
+
+	@Override
+	public int getSiteTypeIndex(int row, int col) {
+		// From the cached site types, instead of a call to the region for a single site
+		return siteTypes.indexOf(getAllSiteTypes()[col][row]);
 	}
 
+    /**
+     * Returns the site types of the whole grid. The array is cached until the site types
+     * change, it is shared by all callers and must not be modified.
+     */
     @Override
     public SiteType[][] getAllSiteTypes() {
+        if(cachedSiteTypes == null || cachedSiteTypeVersion != siteTypeVersion) {
+            // The version is read first, a change made during the gather is seen next time
+            long version = siteTypeVersion;
 
-        SiteType [][] siteTypes = new SiteType[cols][rows];
-        int rowChunk = rows / DIV_ROW;
-        int colChunk = cols / DIV_COL;
+            cachedSiteTypes = gatherSiteTypes();
+            cachedSiteTypeVersion = version;
+        }
 
+        return cachedSiteTypes;
+    }
+
+    /**
+     * Returns the version of the site types, which is incremented by every change
+     * @return
+     */
+    public long getSiteTypeVersion() {
+        return siteTypeVersion;
+    }
+
+    private SiteType[][] gatherSiteTypes() {
+
+        SiteType [][] siteTypes = new SiteType[cols][rows];
 
         for(int x = 0; x < regions.length; x++) {
             for(int y = 0; y < regions[x].length; y++) {
-                int [][] indexes = regions[x][y].getSiteTypes();
-
-                for(int tempX = 0; tempX < indexes.length; tempX++) {
-                    for(int tempY = 0; tempY < indexes[0].length; tempY++) {
-                        siteTypes[x * colChunk + tempX][y * rowChunk + tempY] = this.siteTypes.get(indexes[tempX][tempY]);
+                byte [] indexes = regions[x][y].getSiteTypes();
+                int xStart = decomposition.getColStart(x);
+                int yStart = decomposition.getRowStart(y);
+                int width = decomposition.getWidth(x);
+                int height = decomposition.getHeight(y);
+
+                for(int tempX = 0, index = 0; tempX < width; tempX++) {
+                    for(int tempY = 0; tempY < height; tempY++, index++) {
+                        siteTypes[xStart + tempX][yStart + tempY] = this.siteTypes.get(indexes[index]);
                     }
                 }
             }
@@ -246,7 +609,9 @@ import ch.icosys.popjava.core.util.Configuration;
 
 	@Override
 	public void setSiteType(int row, int col, int typeIndex) {
-		getRegionForPosition(row, col).setSiteType(col, row, typeIndex);
+		SiteTypeEdits edits = new SiteTypeEdits();
+		edits.set(row, col, typeIndex);
+		applySiteTypeEdits(edits);
 	}
 
 	@Override
@@ -266,39 +631,25 @@ import ch.icosys.popjava.core.util.Configuration;
 
 	@Override
 	public double getGlobalFlowAtPosition(int row, int col) {
-		Site site = getRegionForPosition(row, col).getSite(row, col);
-
-		SiteType s = siteTypes.get(site.getTypeIndex());
-
-		if (s instanceof SiteSource) {
-			return ((SiteSource) s).getValue(getElapsedTime());
-		}
-
-		float globalFlowValue = 0.0f;
-		for (int i = 0; i < 4; i++) {
-			globalFlowValue += site.getFlows()[i];
-		}
-
-		return globalFlowValue;
+		return getSnapshot().getGlobalFlow(row, col);
 	}
 
 	@Override
     public double[][] getAllFlows() {
         double [][] globalFlows = new double[cols][rows];
 
-        int rowChunk = rows / DIV_ROW;
-        int colChunk = cols / DIV_COL;
-
         for(int x = 0; x < regions.length; x++) {
             for(int y = 0; y < regions[x].length; y++) {
-                double [][] flows = regions[x][y].getGlobalFlows(getElapsedTime());
+                int xStart = decomposition.getColStart(x);
+                int yStart = decomposition.getRowStart(y);
+                int height = decomposition.getHeight(y);
+                double [] flows = new double[decomposition.getWidth(x) * height];
 
-                for(int tempX = 0; tempX < flows.length; tempX++) {
-                    for(int tempY = 0; tempY < flows[0].length; tempY++) {
-                        globalFlows[x * colChunk + tempX][y * rowChunk + tempY] = flows[tempX][tempY];
-                    }
-                }
+                WireFormat.decodeValues(regions[x][y].getGlobalFlows(getElapsedTime()), flows);
 
+                for(int tempX = 0; tempX < decomposition.getWidth(x); tempX++) {
+                    System.arraycopy(flows, tempX * height, globalFlows[xStart + tempX], yStart, height);
+                }
             }
         }
 
@@ -307,28 +658,77 @@ import ch.icosys.popjava.core.util.Configuration;
 
     @Override
     public double getFlowAtPosition(int row, int col, int flow) {
-        Site site = getRegionForPosition(row, col).getSite(row, col);
-
-        SiteType s = siteTypes.get(site.getTypeIndex());
-
-        if (s instanceof SiteSource) {
-            return ((SiteSource) s).getValue(getElapsedTime());
-        }
-
-        return site.getFlows()[3];
+        return getSnapshot().getSiteFlow(row, col, flow);
     }
 
 	@Override
 	public void setNextSiteTypeIndex(int row, int col) {
-		int currentSiteTypeIndex = getRegionForPosition(row, col).getSite(row, col).getTypeIndex();
-		int nextSiteTypeIndex = (currentSiteTypeIndex + 1) % siteTypes.size();
-		getRegionForPosition(row, col).setSiteType(col, row, nextSiteTypeIndex);
+		int nextSiteTypeIndex = (getSiteTypeIndex(row, col) + 1) % siteTypes.size();
+		setSiteType(row, col, nextSiteTypeIndex);
 	}
 
 	@Override
 	public void setSameSiteTypeIndexAsIn(int row, int col, int lastR, int lastC) {
-		int lastSiteTypeIndex = getRegionForPosition(lastR, lastC).getSite(lastR, lastC).getTypeIndex();
-		getRegionForPosition(row, col).setSiteType(col, row, lastSiteTypeIndex);
+		setSiteType(row, col, getSiteTypeIndex(lastR, lastC));
+	}
+
+	@Override
+	public void applySiteTypeEdits(SiteTypeEdits edits) {
+		synchronized (editLock) {
+			if(stepping) {
+				// The regions and their bounds may change until the steps are done
+				queuedEdits.addAll(edits);
+			} else {
+				sendSiteTypeEdits(edits);
+			}
+		}
+	}
+
+	/**
+	 * Send the site type changes to the regions, the caller must hold editLock and no step
+	 * may be running
+	 * @param edits
+	 */
+	private void sendSiteTypeEdits(SiteTypeEdits edits) {
+		int regionRows = decomposition.getRegionRows();
+		int [] counts = new int[decomposition.getRegionCols() * regionRows];
+		int [] editRegions = new int[edits.size()];
+
+		for(int i = 0; i < edits.size(); i++) {
+			int region = decomposition.getRegionCol(edits.getCol(i)) * regionRows + decomposition.getRegionRow(edits.getRow(i));
+			editRegions[i] = region;
+			counts[region]++;
+		}
+
+		int [][] indices = new int[counts.length][];
+		byte [][] typeIndices = new byte[counts.length][];
+
+		for(int region = 0; region < counts.length; region++) {
+			indices[region] = new int[counts[region]];
+			typeIndices[region] = new byte[counts[region]];
+			counts[region] = 0;
+		}
+
+		for(int i = 0; i < edits.size(); i++) {
+			int region = editRegions[i];
+			int x = region / regionRows;
+			int y = region % regionRows;
+			int n = counts[region]++;
+
+			indices[region][n] = (edits.getCol(i) - decomposition.getColStart(x)) * decomposition.getHeight(y)
+					+ edits.getRow(i) - decomposition.getRowStart(y);
+			typeIndices[region][n] = (byte) edits.getTypeIndex(i);
+		}
+
+		// A single call per region with changes, instead of one per site
+		for(int region = 0; region < counts.length; region++) {
+			if(counts[region] > 0) {
+				regions[region / regionRows][region % regionRows].editSiteTypes(indices[region], typeIndices[region]);
+			}
+		}
+
+		editsSinceBalance += edits.size();
+		siteTypeVersion++;
 	}
 
 	@Override
@@ -338,28 +738,50 @@ import ch.icosys.popjava.core.util.Configuration;
 
 	@Override
 	public void setSiteTypes(int[][] siteTypes) {
-        int rowChunk = rows / DIV_ROW;
-        int colChunk = cols / DIV_COL;
+		synchronized (editLock) {
+			if(stepping) {
+				// The whole grid replaces the edits queued before it
+				queuedSiteTypes = new int[siteTypes.length][];
+				for(int x = 0; x < siteTypes.length; x++) {
+					queuedSiteTypes[x] = siteTypes[x].clone();
+				}
+				queuedEdits.clear();
+			} else {
+				sendSiteTypes(siteTypes);
+			}
+		}
+	}
 
+	/**
+	 * Send the site types of the whole grid to the regions, the caller must hold editLock and
+	 * no step may be running
+	 * @param siteTypes
+	 */
+	private void sendSiteTypes(int[][] siteTypes) {
+		siteTypeVersion++;
         for(int x = 0; x < regions.length; x++) {
             for(int y = 0; y < regions[x].length; y++) {
             	PixelFlowRegion region = regions[x][y];
 
-            	int xStart = region.getX();
-            	int yStart = region.getY();
-            	int width = region.getWidth();
-            	int height = region.getHeight();
-            	int [][] regionTypes = new int [width][height];
+            	int xStart = decomposition.getColStart(x);
+            	int yStart = decomposition.getRowStart(y);
+            	int width = decomposition.getWidth(x);
+            	int height = decomposition.getHeight(y);
+            	byte [] regionTypes = new byte [width * height];
 
-                for(int tempX = 0; tempX < width; tempX++) {
-                    for(int tempY = 0; tempY < height; tempY++) {
-                    	regionTypes[tempX][tempY] = siteTypes[xStart + tempX][yStart + tempY];
+                for(int tempX = 0, index = 0; tempX < width; tempX++) {
+                    for(int tempY = 0; tempY < height; tempY++, index++) {
+                    	regionTypes[index] = (byte) siteTypes[xStart + tempX][yStart + tempY];
                     }
                 }
 
                 region.setSiteTypes(regionTypes);
             }
         }
+
+        if(loadBalancing) {
+        	rebalance();
+        }
 	}
 
 }
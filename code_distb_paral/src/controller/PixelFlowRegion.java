@@ -3,12 +3,21 @@ package controller;
 import java.util.HashMap;
 import java.util.Map;
 
+import model.ActivityMask;
 import model.Site;
+import model.SiteGrid;
 import model.SiteObstacle;
+import model.SiteRuns;
 import model.SiteSource;
 import model.SiteType;
+import model.SourceValues;
+import model.WireFormat;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import ch.icosys.popjava.core.PopJava;
 import ch.icosys.popjava.core.annotation.POPAsyncConc;
@@ -39,35 +48,119 @@ public class PixelFlowRegion {
 
 		private final int index;
 
+		private static final Direction [] VALUES = values();
+
 		Direction(int index){
 			this.index = index;
 		}
 	}
 
 	private final SiteType [] siteTypes;
-    private Site[][] sites;
-    private Site[][] tempSites;
+
+    // Values of the sources, computed once per step. The global flows are read at other
+    // times, possibly while a step is computed, so they have their own table.
+    private final SourceValues stepSourceValues;
+    private final SourceValues querySourceValues;
+
+    // Whether the temperature of the sites of a type changes, indexed by type index
+    private final boolean [] heatedTypes;
+
+    // Runs of sites of the same type of every column, built again at the start of a step
+    // after the types changed
+    private SiteRuns runs;
+    private boolean typesChanged = true;
+
+    private SiteGrid sites;
+    private SiteGrid previousSites;
+    private int previousX, previousY;
     private int x, y;
     private final double deltaTimePerIteration;
 
     private int globalRows, globalCols;
+
+    private boolean [] temperatureUpdated = new boolean[0];
+
+    // Tiles of the sites reached by the flows, the other sites are skipped
+    private ActivityMask activity;
 	private int cores;
+	private final StripeExecutor executor;
 
     private double [][] neighbourFlows = new double[Direction.values().length][];
 
+    // Encoded edges sent to the neighbours, the buffers are reused every step
+    private byte [][] sentFlows = new byte[Direction.values().length][];
+
+    // If set, the flows are sent to the neighbours and to the manager with single precision
+    private boolean singlePrecisionTransfers = false;
+
+    // Whether the flows of the sites are stored as floats
+    private boolean singlePrecisionFlows = false;
+
     private Map<Direction, PixelFlowRegion> neighbours = new HashMap<>();
 
+    // Step whose flows are computed, the edges sent to the neighbours are tagged with it
+    private long currentStep = 0;
+
+    // Edges received from the neighbours, by parity of their step and flow direction. A
+    // neighbour is at most one step ahead, as it needs our edges to finish its own step.
+    private final double [][][] receivedFlows = new double[2][Direction.values().length][];
+
+    // Released once per received edge, by parity of its step, and once when the own
+    // flows of a step are computed
+    private final Semaphore [] receivedHalos = {new Semaphore(0), new Semaphore(0)};
+    private final Semaphore computedFlows = new Semaphore(0);
+
+    // Computes the requested steps one after the other. Requesting a step returns at once,
+    // also when the region is a local object, so all regions can wait for each other's edges.
+    private final ExecutorService stepper = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "region-stepper");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+    // Number of steps completed by step(), guarded by stepLock
+    private final Object stepLock = new Object();
+    private long completedSteps = 0;
+
+    // Own cells surrounded by the ghost layers of a halo deeper than one cell
+    private SiteGrid haloSites;
+    private SiteRuns haloRuns;
+
+    // Number of ghost exchanges done, the blocks sent to the neighbours are tagged with it
+    private long ghostExchanges = 0;
+
+    // Encoded ghost blocks received from the neighbours, by parity of their exchange and direction
+    private final byte [][][] receivedGhosts = new byte[2][Direction.values().length][];
+
+    // Released once per received ghost block, by parity of its exchange and by phase:
+    // first the columns from the left and right neighbours, then the rows from above and below
+    private final Semaphore [][] receivedGhostPhases = {
+    		{new Semaphore(0), new Semaphore(0)},
+    		{new Semaphore(0), new Semaphore(0)}
+    };
+
     public PixelFlowRegion(){
         sites = null;
         deltaTimePerIteration = 0;
         siteTypes = null;
+        stepSourceValues = null;
+        querySourceValues = null;
+        heatedTypes = null;
+        executor = new StripeExecutor(1);
     }
 
 	@POPObjectDescription(jvmParameters = "-XX:+UseG1GC -Xmx5500m -XX:MinHeapFreeRatio=5 -XX:MaxHeapFreeRatio=12")
     public PixelFlowRegion(final double deltaTimePerIteration, SiteType [] siteTypes, @POPConfig(Type.URL) String url, int cores) {
     	this.deltaTimePerIteration = deltaTimePerIteration;
     	this.siteTypes = siteTypes;
+    	this.stepSourceValues = new SourceValues(siteTypes);
+    	this.querySourceValues = new SourceValues(siteTypes);
+    	this.heatedTypes = getHeatedTypes(siteTypes);
 		this.cores = cores;
+		this.executor = new StripeExecutor(cores);
     }
 
 	@POPSyncConc
@@ -79,23 +172,33 @@ public class PixelFlowRegion {
     	this.globalCols = globalCols;
 
     	if(sites == null || !copy) {
-    		this.sites = new Site[width][height];
-    	}else if(sites.length != width || sites[0].length != height){
-    		Site [][] newSites = new Site[width][height];
-
-    		for(int xLoop = 0; xLoop < sites.length && xLoop < width; xLoop++) {
-            	for(int yLoop = 0; yLoop < sites[x].length && yLoop < height; yLoop++) {
-            		newSites[xLoop][yLoop] = sites[xLoop][yLoop];
-            	}
-    		}
+    		this.sites = new SiteGrid(width, height, singlePrecisionFlows);
+    	}else if(sites.getWidth() != width || sites.getHeight() != height){
+    		SiteGrid newSites = new SiteGrid(width, height, singlePrecisionFlows);
+    		newSites.copyFrom(sites);
 
     		this.sites = newSites;
     	}
 
+    	if(temperatureUpdated.length != width) {
+    		temperatureUpdated = new boolean[width];
+    	}
+
+    	activity = new ActivityMask(width, height);
+    	activity.reset(sites, siteTypes);
+    	typesChanged = true;
+
     	neighbourFlows[Direction.UP.index] = new double[width];
     	neighbourFlows[Direction.DOWN.index] = new double[width];
     	neighbourFlows[Direction.LEFT.index] = new double[height];
     	neighbourFlows[Direction.RIGHT.index] = new double[height];
+
+    	for(double [][] edges : receivedFlows) {
+    		edges[Direction.UP.index] = new double[width];
+    		edges[Direction.DOWN.index] = new double[width];
+    		edges[Direction.LEFT.index] = new double[height];
+    		edges[Direction.RIGHT.index] = new double[height];
+    	}
     }
 
     private PixelFlowRegion fake;
@@ -108,118 +211,663 @@ public class PixelFlowRegion {
 
 	@POPSyncConc
     public void initSites(int defaultSiteTypeIndex, float initialTemperature, boolean copy) {
-    	for(int x = 0; x < sites.length; x++) {
-        	for(int y = 0; y < sites[x].length; y++) {
-        		if(copy && sites[x][y] != null) {
-        			sites[x][y].resetFlows();
-        			sites[x][y].setTemperature(initialTemperature);
-        		}else {
-        			sites[x][y] = new Site(defaultSiteTypeIndex, initialTemperature);
+    	for(int x = 0; x < sites.getWidth(); x++) {
+        	for(int y = 0; y < sites.getHeight(); y++) {
+        		if(!copy || !sites.isSet(x, y)) {
+        			sites.setTypeIndex(x, y, defaultSiteTypeIndex);
         		}
+        		sites.resetSite(x, y, initialTemperature);
         	}
     	}
+
+    	activity.reset(sites, siteTypes);
+    	typesChanged = true;
     }
 
 	@POPSyncSeq
     public Site getSite(int row, int col) {
-    	return sites[col - x][row - y];
+    	return sites.getSite(col - x, row - y);
     }
 
 	@POPSyncConc
-    public void setSiteType(int col, int row, int type) {
-    	sites[col - x][row - y].setTypeIndex(type);
+    public void setSiteType(final int col, final int row, final int type) {
+    	runBetweenSteps(new Runnable() {
+			@Override
+			public void run() {
+				sites.setTypeIndex(col - x, row - y, type);
+				typesChanged = true;
+
+				if(siteTypes[type] instanceof SiteSource) {
+					activity.activate(col - x, row - y);
+				}
+			}
+		});
     }
 
 	@POPSyncConc
-    public void setFlow(int col, int row, int flowIndex, double value) {
-    	tempSites[col - x][row - y].getFlows()[flowIndex] = value;
+    public void setFlow(final int col, final int row, final int flowIndex, final double value) {
+    	runBetweenSteps(new Runnable() {
+			@Override
+			public void run() {
+				sites.setNextFlow(flowIndex, sites.index(col - x, row - y), value);
+				activity.activate(col - x, row - y);
+			}
+		});
     }
 
 	@POPSyncSeq
     public Site[][] getAllSites(){
-        return sites;
-    }
-
-	@POPSyncSeq
-    public int[][] getSiteTypes() {
-        int [][] types = new int[sites.length][sites[0].length];
+        Site [][] allSites = new Site[sites.getWidth()][sites.getHeight()];
 
-        for(int x = 0; x < types.length; x++) {
-            for(int y = 0; y < types[0].length; y++) {
-                types[x][y] = sites[x][y].getTypeIndex();
+        for(int x = 0; x < allSites.length; x++) {
+            for(int y = 0; y < allSites[0].length; y++) {
+                allSites[x][y] = sites.getSite(x, y);
             }
         }
 
-        return types;
+        return allSites;
     }
 
+    /**
+     * Returns the type indices of the sites of this region, one byte per site, column by column
+     * @return
+     */
+	@POPSyncSeq
+    public byte[] getSiteTypes() {
+        return sites.getTypeIndices().clone();
+    }
+
+    /**
+     * Returns all the sites of this region, encoded by {@link WireFormat}
+     * @return
+     */
+	@POPSyncSeq
+	public byte[] getSiteBlock() {
+		return WireFormat.encodeBlock(sites, 0, 0, sites.getWidth(), sites.getHeight(), singlePrecisionTransfers);
+	}
+
+    /**
+     * If set, the flows are sent with single precision, which halves the size of the edges
+     * and of the flows read by the manager but rounds the flows received by the neighbours
+     * @param singlePrecisionTransfers
+     */
+	@POPSyncConc
+	public void setSinglePrecisionTransfers(boolean singlePrecisionTransfers) {
+		this.singlePrecisionTransfers = singlePrecisionTransfers;
+	}
+
+    /**
+     * If set, the flows are stored as floats, which halves the memory read and written by
+     * every step. The current sites are converted.
+     * @param singlePrecisionFlows
+     */
+	@POPSyncConc
+	public void setSinglePrecisionFlows(boolean singlePrecisionFlows) {
+		this.singlePrecisionFlows = singlePrecisionFlows;
+
+		if(sites != null && sites.isSinglePrecision() != singlePrecisionFlows) {
+			SiteGrid converted = new SiteGrid(sites.getWidth(), sites.getHeight(), singlePrecisionFlows);
+			converted.copyFrom(sites);
+
+			sites = converted;
+		}
+	}
+
+    /**
+     * Request the given step of this region and return without waiting for it. The steps
+     * of a region are computed in the order they are requested, so several steps can be
+     * requested at once. The region exchanges the edges with its neighbours by itself,
+     * use {@link #awaitStep(long)} to wait for the end of a step.
+     * @param step the step number, starting at 0
+     * @param elapsedTime simulated time at the start of the step
+     * @param fusedStep if set, flows and temperatures are computed in a single sweep
+     */
+	@POPAsyncConc
+	public void step(final long step, final double elapsedTime, final boolean fusedStep) {
+		stepper.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					computeStep(step, elapsedTime, fusedStep);
+				}catch(Throwable e) {
+					e.printStackTrace();
+					System.exit(0);
+				}
+			}
+		});
+	}
+
+    /**
+     * Request the steps firstStep to firstStep + count - 1 of this region and return without
+     * waiting for them. The regions advance on their own, exchanging only the edges with
+     * their neighbours, so the manager needs a single call for any number of steps.
+     * With a halo deeper than one cell, the regions exchange haloDepth layers of cells once
+     * every haloDepth steps and compute the steps in between on their own, see
+     * {@link #computeHaloSteps(long, int, int)}. All regions must use the same halo depth,
+     * which may not be larger than the width or height of any region.
+     * @param firstStep
+     * @param count
+     * @param fusedStep if set, flows and temperatures are computed in a single sweep
+     * @param haloDepth number of ghost layers, 1 exchanges the edges every step
+     */
+	@POPAsyncConc
+	public void runSteps(final long firstStep, final int count, final boolean fusedStep, final int haloDepth) {
+		stepper.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if(haloDepth > 1) {
+						computeHaloSteps(firstStep, count, haloDepth);
+						return;
+					}
+
+					for(long step = firstStep; step < firstStep + count; step++) {
+						computeStep(step, step * deltaTimePerIteration, fusedStep);
+					}
+				}catch(Throwable e) {
+					e.printStackTrace();
+					System.exit(0);
+				}
+			}
+		});
+	}
+
+	private void computeStep(long step, double elapsedTime, boolean fusedStep) {
+		if(step != currentStep) {
+			throw new IllegalStateException("Step " + step + " requested, region is at step " + currentStep);
+		}
+
+		prepareFlowUpdate();
+
+		if(fusedStep) {
+			updateFlowsAndTemperatures(elapsedTime);
+			finishFusedFlowUpdate();
+		}else {
+			updateFlows(elapsedTime);
+			finishFlowUpdate();
+			updateTemperatures();
+		}
+
+		synchronized (stepLock) {
+			completedSteps = step + 1;
+			stepLock.notifyAll();
+		}
+	}
+
+    /**
+     * Compute the given steps on a copy of the own cells surrounded by depth ghost layers.
+     * After an exchange, the ghost cells hold the state of the neighbours' cells, so the
+     * flows of a step can be computed for all the cells but the outermost ring, whose
+     * incoming flows from outside are missing. The ring of cells which are not up to date
+     * grows by one cell per step and reaches the own cells after depth steps, when the
+     * ghost layers are exchanged again. The ghost cells are computed by both neighbours,
+     * in exchange a message is sent every depth steps instead of every step.
+     * @param firstStep
+     * @param count
+     * @param depth
+     */
+	private void computeHaloSteps(long firstStep, int count, int depth) {
+		if(firstStep != currentStep) {
+			throw new IllegalStateException("Step " + firstStep + " requested, region is at step " + currentStep);
+		}
+
+		int width = sites.getWidth();
+		int height = sites.getHeight();
+
+		if(haloSites == null || haloSites.getWidth() != width + 2 * depth || haloSites.getHeight() != height + 2 * depth
+				|| haloSites.isSinglePrecision() != sites.isSinglePrecision()) {
+			haloSites = new SiteGrid(width + 2 * depth, height + 2 * depth, sites.isSinglePrecision());
+		}
+		haloSites.copyFrom(sites, 0, 0, depth, depth, width, height);
+
+		long endStep = firstStep + count;
+
+		for(long step = firstStep; step < endStep; ) {
+			exchangeGhosts(depth);
+
+			// The ghost sites received the types of the neighbour regions
+			haloRuns = new SiteRuns(haloSites);
+
+			for(int i = 0; i < depth && step < endStep; i++, step++) {
+				computeHaloStep(depth, i, step * deltaTimePerIteration);
+			}
+		}
+
+		// The types of the halo grid are those of the start of the batch, only the flows and
+		// the temperatures are copied back
+		sites.copyStateFrom(haloSites, depth, depth, 0, 0, width, height);
+		activity.reset(sites, siteTypes);
+		currentStep = endStep;
+
+		synchronized (stepLock) {
+			completedSteps = endStep;
+			stepLock.notifyAll();
+		}
+	}
+
+    /**
+     * Compute one step on the halo grid
+     * @param depth
+     * @param done number of steps computed since the last exchange, the cells closer than
+     * that to the border of the halo grid are not up to date
+     * @param elapsedTime
+     */
+	private void computeHaloStep(final int depth, int done, final double elapsedTime) {
+		final SiteGrid grid = haloSites;
+
+		// The ghost cells outside of the global grid are never computed, like the cells
+		// outside of the grid they send no flows
+		final int yStart = Math.max(done, depth - y);
+		final int yEnd = Math.min(grid.getHeight() - done, globalRows - y + depth);
+		int xStart = Math.max(done, depth - x);
+		int xEnd = Math.min(grid.getWidth() - done, globalCols - x + depth);
+
+		grid.clearNextFlows();
+
+		// The source values are computed before the stripes read them
+		stepSourceValues.getValues(elapsedTime);
+
+		executor.run(xStart, xEnd, new StripeExecutor.Stripe() {
+			@Override
+			public void compute(int xStart, int xEnd) {
+				updateFlows(grid, xStart, xEnd, yStart, yEnd, elapsedTime);
+			}
+		});
+
+		grid.swapFlows();
+
+		final int height = sites.getHeight();
+
+		executor.run(depth, depth + sites.getWidth(), new StripeExecutor.Stripe() {
+			@Override
+			public void compute(int xStart, int xEnd) {
+				for(int x = xStart; x < xEnd; x++) {
+					updateTemperatures(grid, x, depth, depth + height, false);
+				}
+			}
+		});
+	}
+
+    /**
+     * Send the own cells along the edges to the neighbours and wait for theirs. The columns
+     * are exchanged first with the left and right neighbours, the rows are then exchanged
+     * with the neighbours above and below over the whole width of the halo grid, so the
+     * corners reach the diagonal neighbours without a message of their own.
+     * @param depth
+     */
+	private void exchangeGhosts(int depth) {
+		int parity = (int) (ghostExchanges & 1);
+		int width = sites.getWidth();
+		int height = sites.getHeight();
+		int haloWidth = haloSites.getWidth();
+
+		sendGhosts(Direction.LEFT, depth, depth, depth, height);
+		sendGhosts(Direction.RIGHT, width, depth, depth, height);
+		receivedGhostPhases[parity][0].acquireUninterruptibly(countNeighbours(Direction.LEFT, Direction.RIGHT));
+		copyGhosts(parity, Direction.LEFT, depth + width, depth);
+		copyGhosts(parity, Direction.RIGHT, 0, depth);
+
+		sendGhosts(Direction.UP, 0, depth, haloWidth, depth);
+		sendGhosts(Direction.DOWN, 0, height, haloWidth, depth);
+		receivedGhostPhases[parity][1].acquireUninterruptibly(countNeighbours(Direction.UP, Direction.DOWN));
+		copyGhosts(parity, Direction.UP, 0, depth + height);
+		copyGhosts(parity, Direction.DOWN, 0, 0);
+
+		ghostExchanges++;
+	}
+
+	private int countNeighbours(Direction first, Direction second) {
+		return (neighbours.containsKey(first) ? 1 : 0) + (neighbours.containsKey(second) ? 1 : 0);
+	}
+
+    /**
+     * Send a block of the halo grid to the neighbour in the given direction
+     * @param dir
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     */
+	private void sendGhosts(Direction dir, int x, int y, int width, int height) {
+		if(neighbours.containsKey(dir)) {
+			byte [] block = WireFormat.encodeBlock(haloSites, x, y, width, height, singlePrecisionTransfers);
+
+			try {
+				neighbours.get(dir).setGhosts(block, dir, ghostExchanges);
+			}catch(Throwable e) {
+			    e.printStackTrace();
+			    System.exit(0);
+			}
+		}
+	}
+
+    /**
+     * Copy the block received in the given direction to the halo grid at x,y
+     * @param parity
+     * @param dir
+     * @param x
+     * @param y
+     */
+	private void copyGhosts(int parity, Direction dir, int x, int y) {
+		byte [] block = receivedGhosts[parity][dir.index];
+
+		if(block != null) {
+			WireFormat.decodeBlock(block, haloSites, x, y);
+			receivedGhosts[parity][dir.index] = null;
+		}
+	}
+
+    /**
+     * Receive a block of cells sent by a neighbour for the ghost layers. The block is kept
+     * until the given exchange is done, so it may arrive before this region starts it.
+     * @param block a block encoded by {@link WireFormat}
+     * @param dir direction the block was sent in, the neighbour is on the opposite side
+     * @param exchange
+     */
+	@POPAsyncConc
+	public void setGhosts(byte[] block, Direction dir, long exchange) {
+		int parity = (int) (exchange & 1);
+		int phase = dir == Direction.LEFT || dir == Direction.RIGHT ? 0 : 1;
+
+		receivedGhosts[parity][dir.index] = block;
+		receivedGhostPhases[parity][phase].release();
+	}
+
+    /**
+     * Wait until the given step is completed by {@link #step(long, double, boolean)}
+     * @param step
+     */
+	@POPSyncConc
+	public void awaitStep(long step) {
+		synchronized (stepLock) {
+			while(completedSteps <= step) {
+				try {
+					stepLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+    /**
+     * Drop the sites after the steps requested so far and stop the threads of the region, so
+     * that its memory is given back and it no longer competes with the other regions of its
+     * node. The region cannot be used afterwards.
+     */
+	@POPSyncSeq
+	public void release() {
+		runBetweenSteps(new Runnable() {
+			@Override
+			public void run() {
+				sites = null;
+				previousSites = null;
+				haloSites = null;
+				runs = null;
+				haloRuns = null;
+				activity = null;
+				neighbours.clear();
+				fake = null;
+			}
+		});
+
+		stepper.shutdown();
+		executor.shutdown();
+		System.gc();
+	}
+
+    /**
+     * Run the task on the stepper and wait for it. The task runs after the steps requested
+     * so far, never while the sites are computed, so it can change the sites and the
+     * activity of the region.
+     * @param task
+     */
+	private void runBetweenSteps(Runnable task) {
+		try {
+			stepper.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
 	@POPSyncConc
 	public void prepareFlowUpdate() {
-    	//Create copy of current sites
-    	tempSites = new Site[sites.length][sites[0].length];
-		for (int row = 0; row < tempSites.length; row++) {
-			for (int col = 0; col < tempSites[0].length; col++) {
-				tempSites[row][col] = new Site(sites[row][col].getTypeIndex(), sites[row][col].getTemperature());
+		if (typesChanged) {
+			typesChanged = false;
+			runs = new SiteRuns(sites);
+		}
+
+    	//Clear the buffer receiving the new flows, it stays empty in the inactive tiles
+		int height = sites.getHeight();
+
+		for (int x = 0; x < sites.getWidth(); x++) {
+			for (int y = activity.getNextActiveRow(x, 0); y < height; ) {
+				int end = activity.getActiveRowsEnd(x, y);
+
+				sites.clearNextFlows(x, y, end);
+				y = activity.getNextActiveRow(x, end);
 			}
 		}
 	}
 
 	@POPAsyncConc
-    public void updateFlows(double elapsedTime) {
+    public void updateFlows(final double elapsedTime) {
 
 			PixelFlowRegion me = (PixelFlowRegion) PopJava.getThis(this);
 
-    	for (int x = 0; x < sites.length; x++) {
-			for (int y = 0; y < sites[0].length; y++) {
-				SiteType siteTypeXY = getSiteType(x, y);
-				if (siteTypeXY instanceof SiteSource) {
-					float sourceValue = ((SiteSource) siteTypeXY).getValue(elapsedTime);
-
-					updateTempSite(x + 1, y, Direction.RIGHT, sourceValue);
-					updateTempSite(x - 1, y, Direction.LEFT, sourceValue);
-					updateTempSite(x, y + 1, Direction.DOWN, sourceValue);
-					updateTempSite(x, y - 1, Direction.UP, sourceValue);
-
-				} else {
-					SiteObstacle so = (SiteObstacle) siteTypeXY;
-					double[] gammaFlowPartXY = multiply(so.getGammaMatrix(), sites[x][y].getFlows());
-					double[] betaFlowPartXY = multiply(so.getBetaMatrix(), sites[x][y].getFlows());
-
-					updateTempSite(x + 1, y, Direction.RIGHT, gammaFlowPartXY[Direction.RIGHT.index] + betaFlowPartXY[Direction.RIGHT.index]);
-					updateTempSite(x - 1, y, Direction.LEFT, gammaFlowPartXY[Direction.LEFT.index] + betaFlowPartXY[Direction.LEFT.index]);
-					updateTempSite(x, y + 1, Direction.DOWN, gammaFlowPartXY[Direction.DOWN.index] + betaFlowPartXY[Direction.DOWN.index]);
-					updateTempSite(x, y - 1, Direction.UP, gammaFlowPartXY[Direction.UP.index] + betaFlowPartXY[Direction.UP.index]);
+		// Only the border sites send flows to the neighbours. They are computed first so the
+		// edges travel while the inner sites are computed. This also computes the source
+		// values before the stripes read them.
+		updateBorderFlows(elapsedTime);
+    	sendFlowBuffers();
+
+    	final int height = sites.getHeight();
+
+		// Every site only writes the flows it sends to its direct neighbours and every flow
+		// of the next buffer is written by exactly one site, so stripes never write the same
+		// value, even on the columns bordering another stripe.
+		if(height > 2) {
+			executor.run(1, sites.getWidth() - 1, new StripeExecutor.Stripe() {
+				@Override
+				public void compute(int xStart, int xEnd) {
+					updateFlows(sites, xStart, xEnd, 1, height - 1, elapsedTime);
 				}
-			}
+			});
 		}
 
+		computedFlows.release();
+    }
+
+	@POPAsyncConc
+    public void updateFlowsAndTemperatures(final double elapsedTime) {
+		updateBorderFlows(elapsedTime);
     	sendFlowBuffers();
+
+		if(sites.getHeight() > 2) {
+			executor.run(1, sites.getWidth() - 1, new StripeExecutor.Stripe() {
+				@Override
+				public void compute(int xStart, int xEnd) {
+					updateInnerFlowsAndTemperatures(xStart, xEnd, elapsedTime);
+				}
+			});
+		}
+
+		computedFlows.release();
+    }
+
+    /**
+     * Compute the new flows sent by the sites on the border of the region, the first
+     * and last column and row. These are all the flows leaving the region.
+     * @param elapsedTime
+     */
+    private void updateBorderFlows(double elapsedTime) {
+    	int width = sites.getWidth();
+    	int height = sites.getHeight();
+
+    	updateFlows(sites, 0, Math.min(1, width), 0, height, elapsedTime);
+
+    	if(width > 1) {
+    		updateFlows(sites, width - 1, width, 0, height, elapsedTime);
+    	}
+
+    	if(width > 2 && height > 0) {
+    		updateFlows(sites, 1, width - 1, 0, 1, elapsedTime);
+
+    		if(height > 1) {
+    			updateFlows(sites, 1, width - 1, height - 1, height, elapsedTime);
+    		}
+    	}
+    }
+
+    /**
+     * Compute the new flows sent by the sites yStart to yEnd of the columns xStart to xEnd
+     * of the given grid, the own sites or the halo grid. The columns are computed run by run,
+     * the own sites of the inactive tiles have no flows to send and are skipped.
+     * @param grid
+     * @param xStart
+     * @param xEnd
+     * @param yStart
+     * @param yEnd
+     * @param elapsedTime
+     */
+    private void updateFlows(SiteGrid grid, int xStart, int xEnd, int yStart, int yEnd, double elapsedTime) {
+    	float [] sourceValues = stepSourceValues.getValues(elapsedTime);
+    	SiteRuns gridRuns = grid == sites ? runs : haloRuns;
+
+    	// The halo grid has no activity mask, all its sites are computed
+    	ActivityMask mask = grid == sites ? activity : null;
+
+    	for (int x = xStart; x < xEnd; x++) {
+    		for (int run = gridRuns.getRun(x, yStart); run < gridRuns.getFirstRun(x + 1) && gridRuns.getStart(run) < yEnd;
+    				run++) {
+    			int type = gridRuns.getType(run);
+    			int runStart = Math.max(gridRuns.getStart(run), yStart);
+    			int runEnd = Math.min(gridRuns.getEnd(run), yEnd);
+
+    			for (int y = mask != null ? mask.getNextActiveRow(x, runStart) : runStart; y < runEnd; ) {
+    				int end = mask != null ? Math.min(mask.getActiveRowsEnd(x, y), runEnd) : runEnd;
+
+    				if (stepSourceValues.isSource(type)) {
+    					updateSourceFlows(grid, x, y, end, sourceValues[type]);
+    				} else {
+    					updateObstacleFlows(grid, x, y, end, (SiteObstacle) siteTypes[type]);
+    				}
+
+    				y = mask != null ? mask.getNextActiveRow(x, end) : end;
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Compute the flows sent by the sources yStart to yEnd of the column x of the given grid,
+     * which send the same value in the 4 directions
+     * @param grid
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param sourceValue
+     */
+    private void updateSourceFlows(SiteGrid grid, int x, int yStart, int yEnd, float sourceValue) {
+    	for (int y = yStart; y < yEnd; y++) {
+    		updateTempSite(grid, x + 1, y, Direction.RIGHT, sourceValue);
+    		updateTempSite(grid, x - 1, y, Direction.LEFT, sourceValue);
+    		updateTempSite(grid, x, y + 1, Direction.DOWN, sourceValue);
+    		updateTempSite(grid, x, y - 1, Direction.UP, sourceValue);
+    	}
+    }
+
+    /**
+     * Compute the flows sent by the sites yStart to yEnd of the column x of the given grid,
+     * which all have the given obstacle type
+     * @param grid
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param so
+     */
+    private void updateObstacleFlows(SiteGrid grid, int x, int yStart, int yEnd, SiteObstacle so) {
+    	double [][] flows = grid.getFlows();
+    	float [][] floatFlows = grid.getFloatFlows();
+
+    	for (int y = yStart; y < yEnd; y++) {
+    		int index = grid.index(x, y);
+    		double f0, f1, f2, f3;
+    		if (floatFlows != null) {
+    			f0 = floatFlows[0][index];
+    			f1 = floatFlows[1][index];
+    			f2 = floatFlows[2][index];
+    			f3 = floatFlows[3][index];
+    		} else {
+    			f0 = flows[0][index];
+    			f1 = flows[1][index];
+    			f2 = flows[2][index];
+    			f3 = flows[3][index];
+    		}
+    		double right, left, down, up;
+
+    		if (so.isPureAir()) {
+    			// All incoming flows are spread, half of them in every direction
+    			right = 0.5 * (f0 - f1 + f2 + f3);
+    			left = 0.5 * (f1 - f0 + f2 + f3);
+    			down = 0.5 * (f0 + f1 + f2 - f3);
+    			up = 0.5 * (f0 + f1 - f2 + f3);
+    		} else if (so.isPureWall()) {
+    			// All incoming flows are reflected back
+    			double gamma = so.getGamma();
+    			right = -gamma * f1;
+    			left = -gamma * f0;
+    			down = -gamma * f3;
+    			up = -gamma * f2;
+    		} else {
+    			double[][] s = so.getScatteringMatrix();
+    			right = s[0][0] * f0 + s[0][1] * f1 + s[0][2] * f2 + s[0][3] * f3;
+    			left = s[1][0] * f0 + s[1][1] * f1 + s[1][2] * f2 + s[1][3] * f3;
+    			down = s[2][0] * f0 + s[2][1] * f1 + s[2][2] * f2 + s[2][3] * f3;
+    			up = s[3][0] * f0 + s[3][1] * f1 + s[3][2] * f2 + s[3][3] * f3;
+    		}
+
+    		updateTempSite(grid, x + 1, y, Direction.RIGHT, right);
+    		updateTempSite(grid, x - 1, y, Direction.LEFT, left);
+    		updateTempSite(grid, x, y + 1, Direction.DOWN, down);
+    		updateTempSite(grid, x, y - 1, Direction.UP, up);
+    	}
+    }
+
+    /**
+     * Compute the new flows of the inner sites of the columns xStart to xEnd and, in the same
+     * sweep, the temperatures of the sites whose new flows are complete: the border sites are
+     * already computed, so once column x is computed, all the flows received by the inner sites
+     * of column x - 1 are known. The columns xStart and xEnd - 1 as well as the first and last
+     * row receive flows from outside of the stripe and are updated by
+     * {@link #finishFusedFlowUpdate()}.
+     * @param xStart
+     * @param xEnd
+     * @param elapsedTime
+     */
+    private void updateInnerFlowsAndTemperatures(int xStart, int xEnd, double elapsedTime) {
+    	int height = sites.getHeight();
+
+    	for (int x = xStart; x < xEnd; x++) {
+    		updateFlows(sites, x, x + 1, 1, height - 1, elapsedTime);
+
+    		if (x - 1 > xStart && height > 2) {
+    			updateTemperatures(sites, x - 1, 1, height - 1, true);
+    			temperatureUpdated[x - 1] = true;
+    		}
+    	}
     }
 
 	@POPSyncSeq
     private void sendFlowBuffers() {
-    	for(Direction dir : Direction.values()) {
+    	for(Direction dir : Direction.VALUES) {
     		if(neighbours.containsKey(dir)) {
-    			int xTarget = x;
-    			int yTarget = y;
-
-    			Direction flowDir = null;
-    			if(dir == Direction.UP) {
-    				yTarget--;
-    				flowDir = Direction.DOWN;
-    			}else if(dir == Direction.DOWN) {
-    				yTarget += sites[0].length;
-    				flowDir = Direction.UP;
-    			}else if(dir == Direction.LEFT) {
-    				xTarget--;
-    				flowDir = Direction.RIGHT;
-    			}else if(dir == Direction.RIGHT) {
-    				xTarget += sites.length;
-    				flowDir = Direction.LEFT;
-    			}
-
     			try {
-    			    neighbours.get(dir).setFlows(neighbourFlows[dir.index], xTarget, yTarget, dir);
+    			    sentFlows[dir.index] = WireFormat.encodeValues(neighbourFlows[dir.index], singlePrecisionTransfers, sentFlows[dir.index]);
+    			    neighbours.get(dir).setFlows(sentFlows[dir.index], dir, currentStep);
     			}catch(Throwable e) {
     			    e.printStackTrace();
     			    System.exit(0);
@@ -228,30 +876,58 @@ public class PixelFlowRegion {
     	}
     }
 
+    /**
+     * Receive the flows sent by a neighbour over the common edge. The edge is kept until
+     * the given step is finished, so it may arrive before this region starts that step.
+     * @param flows the edge encoded by {@link WireFormat#encodeValues(double[], boolean, byte[])}
+     * @param dir direction of the flows, the neighbour is on the opposite side
+     * @param step
+     */
 	@POPAsyncConc
-    public void setFlows(double [] flows, int xTarget, int yTarget, Direction dir) {
-    	for(int i = 0; i < flows.length; i++) {
-    		int col;
-    		int row;
-
-        	if(dir == Direction.UP || dir == Direction.DOWN) {
-        		col = xTarget + i;
-        		row = yTarget ;
-        	}else {
-        		col = xTarget ;
-        		row = yTarget + i;
-        	}
+    public void setFlows(byte [] flows, Direction dir, long step) {
+		WireFormat.decodeValues(flows, receivedFlows[(int) (step & 1)][dir.index]);
+
+    	receivedHalos[(int) (step & 1)].release();
+    }
+
+    /**
+     * Wait until the flows of the current step are computed and all the edges of the
+     * neighbours are received, then copy the edges to the new flows
+     */
+    private void awaitFlows() {
+    	int parity = (int) (currentStep & 1);
+
+    	computedFlows.acquireUninterruptibly();
+    	receivedHalos[parity].acquireUninterruptibly(neighbours.size());
 
-        	setFlow(col, row, dir.index, flows[i]);
+    	// The whole edge is copied at once, a column edge is contiguous in the flow arrays
+    	double [][] edges = receivedFlows[parity];
+    	if(neighbours.containsKey(Direction.UP)) {
+    		sites.setNextFlowRow(Direction.DOWN.index, 0, 0, edges[Direction.DOWN.index]);
     	}
+    	if(neighbours.containsKey(Direction.DOWN)) {
+    		sites.setNextFlowRow(Direction.UP.index, 0, sites.getHeight() - 1, edges[Direction.UP.index]);
+    	}
+    	if(neighbours.containsKey(Direction.LEFT)) {
+    		sites.setNextFlowColumn(Direction.RIGHT.index, 0, 0, edges[Direction.RIGHT.index]);
+    	}
+    	if(neighbours.containsKey(Direction.RIGHT)) {
+    		sites.setNextFlowColumn(Direction.LEFT.index, sites.getWidth() - 1, 0, edges[Direction.LEFT.index]);
+    	}
+
+    	currentStep++;
     }
 
 	@POPSyncConc
     public void updateTempSite(int x, int y, Direction flowDir, double value) {
+		updateTempSite(sites, x, y, flowDir, value);
+	}
+
+    private void updateTempSite(SiteGrid grid, int x, int y, Direction flowDir, double value) {
     	//We are in our own grid
-    	if(x >= 0 && y >= 0 && x < sites.length && y < sites[0].length) {
-    		tempSites[x][y].getFlows()[flowDir.index] = value;
-    	}else {
+    	if(x >= 0 && y >= 0 && x < grid.getWidth() && y < grid.getHeight()) {
+    		grid.setNextFlow(flowDir.index, grid.index(x, y), value);
+    	}else if(grid == sites) {
     		int realX = x + this.x;
     		int realY = y + this.y;
 
@@ -260,9 +936,9 @@ public class PixelFlowRegion {
     				neighbourFlows[Direction.LEFT.index][y] = value;
     			}else if(y < 0) {
     				neighbourFlows[Direction.UP.index][x] = value;
-    			}else if(x >= sites.length) {
+    			}else if(x >= sites.getWidth()) {
     				neighbourFlows[Direction.RIGHT.index][y] = value;
-    			}else if(y >= sites[0].length) {
+    			}else if(y >= sites.getHeight()) {
     				neighbourFlows[Direction.DOWN.index][x] = value;
     			}
     		}
@@ -271,86 +947,188 @@ public class PixelFlowRegion {
 
 	@POPSyncConc
 	public void finishFlowUpdate() {
-		this.sites = tempSites;
+		awaitFlows();
+		sites.swapFlows();
+		activity.wake(sites);
+	}
+
+    /**
+     * Finish a step computed by updateFlowsAndTemperatures: make the new flows current and
+     * update the temperatures of the sites which were not complete during the sweep
+     */
+	@POPSyncConc
+	public void finishFusedFlowUpdate() {
+		awaitFlows();
+		sites.swapFlows();
+		activity.wake(sites);
+
+		executor.run(sites.getWidth(), new StripeExecutor.Stripe() {
+			@Override
+			public void compute(int xStart, int xEnd) {
+				finishFusedTemperatures(xStart, xEnd);
+			}
+		});
+	}
+
+	private void finishFusedTemperatures(int xStart, int xEnd) {
+		int height = sites.getHeight();
+
+		for (int x = xStart; x < xEnd; x++) {
+			if (temperatureUpdated[x]) {
+				updateTemperatures(sites, x, 0, 1, false);
+				updateTemperatures(sites, x, height - 1, height, false);
+				temperatureUpdated[x] = false;
+			} else {
+				updateTemperatures(sites, x, 0, height, false);
+			}
+		}
 	}
 
 	@POPSyncConc
     public void updateTemperatures() {
-        for (int x = 0; x < sites.length; x++) {
-            for (int y = 0; y < sites[0].length; y++) {
-                SiteType s = getSiteType(x, y);
-
-                // If site s is a source return by default the initial temperature of the system
-                // (because here we don't care with the temperature of a source site)
-                if (s instanceof SiteSource) {
-                    continue;
-                }
-
-                // Else the site is not a source, therefore is an obstacle and has a beta and a
-                // gamma value
-                SiteObstacle so = (SiteObstacle) s;
-
-                // First retrieve the flows in the 4 directions at the point
-                double f0 = sites[x][y].getFlows()[0];
-                double f1 = sites[x][y].getFlows()[1];
-                double f2 = sites[x][y].getFlows()[2];
-                double f3 = sites[x][y].getFlows()[3];
-
-                float factor = so.getEnergyLossFactor(); // 1.0 - gamma^2 - gamma * beta - beta^2
-                float energy = (float) (factor * deltaTimePerIteration * (f0 * f0 + f1 * f1 + f2 * f2 + f3 * f3)); // [J]
-                float deltaTemperature = (float) energy / so.getEnergyNeededToIncreaseByOneDegree();
-
-                sites[x][y].addTemperature(deltaTemperature);
+		executor.run(sites.getWidth(), new StripeExecutor.Stripe() {
+			@Override
+			public void compute(int xStart, int xEnd) {
+				updateTemperatures(xStart, xEnd);
+			}
+		});
+    }
+
+    /**
+     * Update the temperatures of the sites of the columns xStart to xEnd
+     * @param xStart
+     * @param xEnd
+     */
+    private void updateTemperatures(int xStart, int xEnd) {
+
+        for (int x = xStart; x < xEnd; x++) {
+        	updateTemperatures(sites, x, 0, sites.getHeight(), false);
+        }
+    }
+
+    /**
+     * Update the temperatures of the sites yStart to yEnd of the column x of the given grid
+     * heated by the current or the next flows. The own sites of the tiles which cannot have
+     * flows are skipped.
+     * @param grid
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param next if set, the flows of the next step, otherwise the current flows
+     */
+    private void updateTemperatures(SiteGrid grid, int x, int yStart, int yEnd, boolean next) {
+    	SiteRuns gridRuns = grid == sites ? runs : haloRuns;
+    	ActivityMask mask = grid == sites ? activity : null;
+
+        // The sites are updated by runs of sites of the same type
+        for (int run = gridRuns.getRun(x, yStart); run < gridRuns.getFirstRun(x + 1) && gridRuns.getStart(run) < yEnd;
+                run++) {
+            int type = gridRuns.getType(run);
+
+            // The sources and the sites which need an infinite energy keep their temperature
+            if (!heatedTypes[type]) {
+                continue;
+            }
+
+            int runStart = Math.max(gridRuns.getStart(run), yStart);
+            int runEnd = Math.min(gridRuns.getEnd(run), yEnd);
+
+            // The next flows can also be received by the neighbours of the active tiles
+            for (int y = mask == null ? runStart : next ? mask.getNextAwakeRow(x, runStart) : mask.getNextActiveRow(x, runStart);
+                    y < runEnd; ) {
+                int end = mask == null ? runEnd
+                        : Math.min(next ? mask.getAwakeRowsEnd(x, y) : mask.getActiveRowsEnd(x, y), runEnd);
+
+                updateTemperatures(grid, x, y, end, (SiteObstacle) siteTypes[type], next);
+                y = mask == null ? end : next ? mask.getNextAwakeRow(x, end) : mask.getNextActiveRow(x, end);
             }
         }
+    }
 
+    /**
+     * Update the temperatures of the sites yStart to yEnd of the column x of the given grid,
+     * which all have the given obstacle type
+     * @param grid
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param so
+     * @param next if set, the flows of the next step, otherwise the current flows
+     */
+    private void updateTemperatures(SiteGrid grid, int x, int yStart, int yEnd, SiteObstacle so, boolean next) {
+    	float [] temperatures = grid.getTemperatures();
+    	double [][] flows = next ? grid.getNextFlows() : grid.getFlows();
+    	float [][] floatFlows = next ? grid.getNextFloatFlows() : grid.getFloatFlows();
+    	float factor = so.getEnergyLossFactor(); // 1.0 - gamma^2 - gamma * beta - beta^2
+    	float energyNeeded = so.getEnergyNeededToIncreaseByOneDegree();
+
+    	for (int y = yStart; y < yEnd; y++) {
+    		// First retrieve the flows in the 4 directions at the point
+    		int index = grid.index(x, y);
+    		double f0, f1, f2, f3;
+    		if (floatFlows != null) {
+    			f0 = floatFlows[0][index];
+    			f1 = floatFlows[1][index];
+    			f2 = floatFlows[2][index];
+    			f3 = floatFlows[3][index];
+    		} else {
+    			f0 = flows[0][index];
+    			f1 = flows[1][index];
+    			f2 = flows[2][index];
+    			f3 = flows[3][index];
+    		}
+
+    		float energy = (float) (factor * deltaTimePerIteration * (f0 * f0 + f1 * f1 + f2 * f2 + f3 * f3)); // [J]
+    		float deltaTemperature = (float) energy / energyNeeded;
+
+    		temperatures[index] += deltaTemperature;
+    	}
     }
-	@POPSyncConc
-    private SiteType getSiteType(int row, int col) {
-		return siteTypes[sites[row][col].getTypeIndex()];
-	}
 
-	@POPSyncConc
-	private static double[] multiply(double[][] matrix, double[] vector) {
-		double[] result = new double[matrix.length];
+    /**
+     * Returns whether the temperature of the sites of every type changes. The sources and the
+     * obstacles which need an infinite energy to get one degree warmer keep their temperature.
+     * @param siteTypes
+     * @return whether the temperature changes, indexed by type index
+     */
+    private static boolean[] getHeatedTypes(SiteType[] siteTypes) {
+    	boolean [] heated = new boolean[siteTypes.length];
+
+    	for (int i = 0; i < siteTypes.length; i++) {
+    		heated[i] = siteTypes[i] instanceof SiteObstacle
+    				&& ((SiteObstacle) siteTypes[i]).getEnergyNeededToIncreaseByOneDegree() != Float.MAX_VALUE;
+    	}
+
+    	return heated;
+    }
 
-		// Potential omp
-		for (int i = 0; i < result.length; i++) {
-			for (int j = 0; j < vector.length; j++) {
-				result[i] += matrix[i][j] * vector[j];
-			}
-		}
-		return result;
-	}
 		@POPSyncSeq
-    public double[][] getGlobalFlows(double elapsedTime) {
-        double [][] flows = new double[sites.length][sites[0].length];
+    public byte[] getGlobalFlows(double elapsedTime) {
+        double [] flows = new double[sites.getWidth() * sites.getHeight()];
 
-        for(int x = 0; x < flows.length; x++) {
-            for(int y = 0; y < flows[0].length; y++) {
-                flows[x][y] = getGlobalFlow(sites[x][y], elapsedTime);
+        for(int x = 0; x < sites.getWidth(); x++) {
+            for(int y = 0; y < sites.getHeight(); y++) {
+                flows[sites.index(x, y)] = getGlobalFlow(x, y, elapsedTime);
             }
         }
 
-        return flows;
+        return WireFormat.encodeValues(flows, singlePrecisionTransfers, null);
     }
 		@POPSyncSeq
     public double getGlobalFlowAtPosition(int row, int col, double elapsedTime) {
-        Site site = getSite(row, col);
-
-        return getGlobalFlow(site, elapsedTime);
+        return getGlobalFlow(col - x, row - y, elapsedTime);
     }
 
-    private double getGlobalFlow(Site site, double elapsedTime) {
-        SiteType s = siteTypes[site.getTypeIndex()];
+    private double getGlobalFlow(int x, int y, double elapsedTime) {
+        int typeIndex = sites.getTypeIndex(x, y);
 
-        if (s instanceof SiteSource) {
-            return ((SiteSource) s).getValue(elapsedTime);
+        if (querySourceValues.isSource(typeIndex)) {
+            return querySourceValues.getValues(elapsedTime)[typeIndex];
         }
 
         float globalFlowValue = 0.0f;
         for (int i = 0; i < 4; i++) {
-            globalFlowValue += site.getFlows()[i];
+            globalFlowValue += sites.getFlow(x, y, i);
         }
 
         return globalFlowValue;
@@ -362,7 +1140,7 @@ public class PixelFlowRegion {
      */
 		@POPSyncSeq
     public int getWidth() {
-    	return sites.length;
+    	return sites.getWidth();
     }
 
     /**
@@ -371,7 +1149,7 @@ public class PixelFlowRegion {
      */
 		@POPSyncSeq
     public int getHeight() {
-    	return sites[0].length;
+    	return sites.getHeight();
     }
 
     /**
@@ -394,14 +1172,115 @@ public class PixelFlowRegion {
 
     /**
      * Set the types of all region types
-     * @param regionTypes
+     * @param regionTypes one byte per site, column by column
      */
 		@POPSyncSeq
-		public void setSiteTypes(int[][] regionTypes) {
-    	for(int x = 0; x < regionTypes.length; x++) {
-            for(int y = 0; y < regionTypes[0].length; y++) {
-            	sites[x][y].setTypeIndex(regionTypes[x][y]);
-            }
-    	}
+		public void setSiteTypes(final byte[] regionTypes) {
+			runBetweenSteps(new Runnable() {
+				@Override
+				public void run() {
+					System.arraycopy(regionTypes, 0, sites.getTypeIndices(), 0, regionTypes.length);
+					activity.reset(sites, siteTypes);
+					typesChanged = true;
+				}
+			});
 		}
+
+    /**
+     * Set the types of the given sites
+     * @param indices positions of the sites in the region, column by column
+     * @param typeIndices
+     */
+	@POPSyncConc
+	public void editSiteTypes(final int[] indices, final byte[] typeIndices) {
+		runBetweenSteps(new Runnable() {
+			@Override
+			public void run() {
+				byte [] types = sites.getTypeIndices();
+
+				for(int i = 0; i < indices.length; i++) {
+					types[indices[i]] = typeIndices[i];
+				}
+
+				activity.reset(sites, siteTypes);
+				typesChanged = true;
+			}
+		});
+	}
+
+    /**
+     * Returns the estimated cost of each column and of each row of this region
+     * @param typeCosts cost of a cell, indexed by type index
+     * @return the column costs followed by the row costs
+     */
+	@POPSyncSeq
+	public double[][] getCosts(double[] typeCosts) {
+		double [] colCosts = new double[sites.getWidth()];
+		double [] rowCosts = new double[sites.getHeight()];
+		byte [] typeIndices = sites.getTypeIndices();
+
+		for(int x = 0; x < colCosts.length; x++) {
+			int index = sites.index(x, 0);
+
+			for(int y = 0; y < rowCosts.length; y++, index++) {
+				double cost = typeCosts[typeIndices[index]];
+				colCosts[x] += cost;
+				rowCosts[y] += cost;
+			}
+		}
+
+		return new double[][] {colCosts, rowCosts};
+	}
+
+    /**
+     * Moves this region to a new position and size on the global grid. The cells of the new
+     * area have to be set with setSites, the previous cells can be read with getPreviousSites
+     * until finishMoveSites is called.
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @param globalCols
+     * @param globalRows
+     */
+	@POPSyncConc
+	public void moveSites(int x, int y, int width, int height, int globalCols, int globalRows) {
+		previousSites = sites;
+		previousX = this.x;
+		previousY = this.y;
+
+		createSites(x, y, width, height, globalCols, globalRows, false);
+	}
+
+    /**
+     * Returns a block of the cells this region had before it was moved, encoded by
+     * {@link WireFormat}. The flows always keep their full precision.
+     * @param col first column on the global grid
+     * @param row first row on the global grid
+     * @param width
+     * @param height
+     * @return
+     */
+	@POPSyncSeq
+	public byte[] getPreviousSites(int col, int row, int width, int height) {
+		return WireFormat.encodeBlock(previousSites, col - previousX, row - previousY, width, height, false);
+	}
+
+    /**
+     * Set the cells starting at the given position on the global grid
+     * @param block a block encoded by {@link WireFormat}
+     * @param col
+     * @param row
+     */
+	@POPSyncConc
+	public void setSites(byte[] block, int col, int row) {
+		WireFormat.decodeBlock(block, sites, col - x, row - y);
+	}
+
+	@POPSyncConc
+	public void finishMoveSites() {
+		previousSites = null;
+		activity.reset(sites, siteTypes);
+		typesChanged = true;
+	}
 }
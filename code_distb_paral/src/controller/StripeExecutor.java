@@ -0,0 +1,101 @@
+package controller;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a computation over the columns of a region in parallel.
+ * The region is split into contiguous column stripes, one per core, which are
+ * computed by a fork/join pool. A stripe always covers whole columns, which are
+ * contiguous in the {@link model.SiteGrid} arrays.
+ * @author beat
+ *
+ */
+public class StripeExecutor {
+
+	/**
+	 * Computation done on the columns xStart (inclusive) to xEnd (exclusive)
+	 */
+	public static interface Stripe {
+		void compute(int xStart, int xEnd);
+	}
+
+	private final ForkJoinPool pool;
+	private final int stripes;
+
+	public StripeExecutor(int cores) {
+		this.stripes = Math.max(1, cores);
+		this.pool = new ForkJoinPool(stripes);
+	}
+
+	/**
+	 * Returns the number of stripes a region is split into
+	 * @return
+	 */
+	public int getStripes() {
+		return stripes;
+	}
+
+	/**
+	 * Computes the given stripe on all columns from 0 to width and waits until
+	 * all stripes are done.
+	 * @param width
+	 * @param stripe
+	 */
+	public void run(int width, Stripe stripe) {
+		run(0, width, stripe);
+	}
+
+	/**
+	 * Computes the given stripe on the columns from xStart to xEnd and waits until
+	 * all stripes are done.
+	 * @param xStart
+	 * @param xEnd
+	 * @param stripe
+	 */
+	public void run(int xStart, int xEnd, Stripe stripe) {
+		int count = Math.min(stripes, xEnd - xStart);
+
+		if(count <= 1) {
+			if(xEnd > xStart) {
+				stripe.compute(xStart, xEnd);
+			}
+		}else {
+			pool.invoke(new StripeTask(stripe, xStart, xEnd, count));
+		}
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private static class StripeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 2675474237361893043L;
+
+		private final Stripe stripe;
+		private final int xStart, xEnd, count;
+
+		StripeTask(Stripe stripe, int xStart, int xEnd, int count) {
+			this.stripe = stripe;
+			this.xStart = xStart;
+			this.xEnd = xEnd;
+			this.count = count;
+		}
+
+		@Override
+		protected void compute() {
+			if(count == 1) {
+				stripe.compute(xStart, xEnd);
+				return;
+			}
+
+			int half = count / 2;
+			int xMiddle = xStart + (int) ((long) (xEnd - xStart) * half / count);
+
+			invokeAll(new StripeTask(stripe, xStart, xMiddle, half),
+					new StripeTask(stripe, xMiddle, xEnd, count - half));
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package model;
+
+import java.awt.Color;
+
+/**
+ * The site types of the system, in the order of the type indexes used by the grid files
+ * @author Gisler Christophe
+ *
+ */
+public class DefaultSiteTypes {
+
+	public static final int AIR = 0;
+	public static final int WALL = 1;
+	public static final int WATER = 2;
+	public static final int SOURCE = 3;
+
+	public static final float INITIAL_TEMPERATURE = 21.0f;
+
+	/**
+	 * Creates the site types, indexed by AIR, WALL, WATER and SOURCE
+	 * @return
+	 */
+	public static SiteType[] create() {
+		SiteType [] siteTypes = new SiteType[4];
+
+		/*
+		 * *****************************************************************************
+		 * ************
+		 */
+		/*
+		 * For a given site type, beta^2 + beta * gamma + gamma^2 <= 1 (and < 1 <=>
+		 * calorific loss)
+		 */
+		/*
+		 * *****************************************************************************
+		 * ************
+		 */
+
+		// Site of type "air": all incoming energy is spread <=> beta = 1.0 and gamma =
+		// 0.0
+		siteTypes[AIR] = new SiteObstacle("Air", Color.WHITE, 1.0f, 0.0f, Float.MAX_VALUE);
+
+		// Site of type "wall": all incoming energy is reflected <=> beta = 1.0 and
+		// gamma = 0.0
+		siteTypes[WALL] = new SiteObstacle("Wall", Color.DARK_GRAY, 0.0f, 1.0f, Float.MAX_VALUE);
+
+		// Site of type "water": a part of the incoming energy is lost in heat: beta^2 +
+		// beta * gamma + gamma^2 < 1
+		siteTypes[WATER] = new SiteObstacle("Water", Color.BLUE, 0.93f, 0.0f, 4.2f);
+
+		// Site of type "source": yields the energy
+		siteTypes[SOURCE] = new SiteSource("Source", Color.MAGENTA, (long) 24.5, 40);
+
+		/*
+		 * *****************************************************************************
+		 * ***********************
+		 */
+		/*
+		 * A sinusoidal source (like micro-ondes) have a frequency and an amplitude:
+		 * freq = 2.45GHz = 2.45E9Hz
+		 */
+		/*
+		 * Micro-ondes have a frequency of 2.45 GHz = 2.45E9 Hz, but for simulation
+		 * reasons that you must
+		 */
+		/*
+		 * understand and explain, have been set to 24.5Hz. The amplitude has been
+		 * trivially set to 40.
+		 */
+		/*
+		 * *****************************************************************************
+		 * ***********************
+		 */
+
+		return siteTypes;
+	}
+
+}
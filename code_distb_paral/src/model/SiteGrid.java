@@ -0,0 +1,374 @@
+package model;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Structure-of-arrays storage of the sites of a region.
+ * Instead of one {@link Site} object per cell, every attribute is kept in its own
+ * flat primitive array indexed column by column (x * height + y), which is the
+ * order in which the simulation loops walk the grid.
+ * {@link Site} objects are only created on demand as a view of a single cell.
+ *
+ * The flows are stored either as doubles or, in single precision, as floats, which halves
+ * the memory and the memory bandwidth they need. Only one of the two sets of flow arrays
+ * exists, the other one is null.
+ * @author beat
+ *
+ */
+public class SiteGrid implements Serializable {
+
+	private static final long serialVersionUID = -4207416633934183507L;
+
+	public static final int DIRECTIONS = 4;
+
+	/**
+	 * Type index of a cell which has not been initialized yet
+	 */
+	public static final byte UNSET_TYPE = -1;
+
+	private final int width, height;
+	private final boolean singlePrecision;
+	private double [][] flows;
+	private double [][] nextFlows;
+	private float [][] floatFlows;
+	private float [][] nextFloatFlows;
+	private final float [] temperatures;
+	private final byte [] typeIndices;
+
+	public SiteGrid(int width, int height) {
+		this(width, height, false);
+	}
+
+	/**
+	 * Creates a grid storing its flows as floats if singlePrecision is set
+	 * @param width
+	 * @param height
+	 * @param singlePrecision
+	 */
+	public SiteGrid(int width, int height, boolean singlePrecision) {
+		this.width = width;
+		this.height = height;
+		this.singlePrecision = singlePrecision;
+
+		if(singlePrecision) {
+			this.floatFlows = new float[DIRECTIONS][width * height];
+			this.nextFloatFlows = new float[DIRECTIONS][width * height];
+		}else {
+			this.flows = new double[DIRECTIONS][width * height];
+			this.nextFlows = new double[DIRECTIONS][width * height];
+		}
+		this.temperatures = new float[width * height];
+		this.typeIndices = new byte[width * height];
+
+		Arrays.fill(typeIndices, UNSET_TYPE);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean isSinglePrecision() {
+		return singlePrecision;
+	}
+
+	/**
+	 * Returns the position of the cell x,y in the flat arrays
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int index(int x, int y) {
+		return x * height + y;
+	}
+
+	/**
+	 * Returns the flow arrays, one per direction, or null if the flows are stored as floats
+	 * @return
+	 */
+	public double[][] getFlows() {
+		return flows;
+	}
+
+	/**
+	 * Returns the flow arrays receiving the flows of the next step, or null if the flows
+	 * are stored as floats
+	 * @return
+	 */
+	public double[][] getNextFlows() {
+		return nextFlows;
+	}
+
+	/**
+	 * Returns the flow arrays, one per direction, or null if the flows are stored as doubles
+	 * @return
+	 */
+	public float[][] getFloatFlows() {
+		return floatFlows;
+	}
+
+	/**
+	 * Returns the flow arrays receiving the flows of the next step, or null if the flows
+	 * are stored as doubles
+	 * @return
+	 */
+	public float[][] getNextFloatFlows() {
+		return nextFloatFlows;
+	}
+
+	/**
+	 * Set all flows of the next step buffer to zero
+	 */
+	public void clearNextFlows() {
+		for(int dir = 0; dir < DIRECTIONS; dir++) {
+			if(singlePrecision) {
+				Arrays.fill(nextFloatFlows[dir], 0);
+			}else {
+				Arrays.fill(nextFlows[dir], 0);
+			}
+		}
+	}
+
+	/**
+	 * Set the flows of the next step of the cells yStart to yEnd of the column x to zero
+	 * @param x
+	 * @param yStart
+	 * @param yEnd
+	 */
+	public void clearNextFlows(int x, int yStart, int yEnd) {
+		for(int dir = 0; dir < DIRECTIONS; dir++) {
+			if(singlePrecision) {
+				Arrays.fill(nextFloatFlows[dir], index(x, yStart), index(x, yEnd), 0);
+			}else {
+				Arrays.fill(nextFlows[dir], index(x, yStart), index(x, yEnd), 0);
+			}
+		}
+	}
+
+	/**
+	 * Make the next step buffer the current flows. The previous flows are reused
+	 * as next step buffer, so no memory is allocated while stepping.
+	 */
+	public void swapFlows() {
+		double [][] previous = flows;
+		flows = nextFlows;
+		nextFlows = previous;
+
+		float [][] previousFloats = floatFlows;
+		floatFlows = nextFloatFlows;
+		nextFloatFlows = previousFloats;
+	}
+
+	/**
+	 * Set the flow of the next step of the cell at the given position in the flat arrays
+	 * @param direction
+	 * @param index
+	 * @param value
+	 */
+	public void setNextFlow(int direction, int index, double value) {
+		if(singlePrecision) {
+			nextFloatFlows[direction][index] = (float) value;
+		}else {
+			nextFlows[direction][index] = value;
+		}
+	}
+
+	/**
+	 * Copy the given values to the next step flows of the column x, starting at row y
+	 * @param direction
+	 * @param x
+	 * @param y
+	 * @param values
+	 */
+	public void setNextFlowColumn(int direction, int x, int y, double[] values) {
+		if(singlePrecision) {
+			float [] target = nextFloatFlows[direction];
+			int index = index(x, y);
+
+			for(int i = 0; i < values.length; i++) {
+				target[index + i] = (float) values[i];
+			}
+		}else {
+			System.arraycopy(values, 0, nextFlows[direction], index(x, y), values.length);
+		}
+	}
+
+	/**
+	 * Copy the given values to the next step flows of the row y, starting at column x
+	 * @param direction
+	 * @param x
+	 * @param y
+	 * @param values
+	 */
+	public void setNextFlowRow(int direction, int x, int y, double[] values) {
+		int index = index(x, y);
+
+		for(int i = 0; i < values.length; i++, index += height) {
+			setNextFlow(direction, index, values[i]);
+		}
+	}
+
+	public double getFlow(int x, int y, int direction) {
+		return singlePrecision ? floatFlows[direction][index(x, y)] : flows[direction][index(x, y)];
+	}
+
+	public void setFlow(int x, int y, int direction, double value) {
+		if(singlePrecision) {
+			floatFlows[direction][index(x, y)] = (float) value;
+		}else {
+			flows[direction][index(x, y)] = value;
+		}
+	}
+
+	/**
+	 * Copy the flows of the given direction of length cells, starting at the given position
+	 * in the flat arrays, to the target array
+	 * @param direction
+	 * @param index
+	 * @param target
+	 * @param targetIndex
+	 * @param length
+	 */
+	public void copyFlows(int direction, int index, double[] target, int targetIndex, int length) {
+		if(singlePrecision) {
+			float [] source = floatFlows[direction];
+
+			for(int i = 0; i < length; i++) {
+				target[targetIndex + i] = source[index + i];
+			}
+		}else {
+			System.arraycopy(flows[direction], index, target, targetIndex, length);
+		}
+	}
+
+	public float[] getTemperatures() {
+		return temperatures;
+	}
+
+	public float getTemperature(int x, int y) {
+		return temperatures[index(x, y)];
+	}
+
+	public void setTemperature(int x, int y, float temperature) {
+		temperatures[index(x, y)] = temperature;
+	}
+
+	public byte[] getTypeIndices() {
+		return typeIndices;
+	}
+
+	public int getTypeIndex(int x, int y) {
+		return typeIndices[index(x, y)];
+	}
+
+	public void setTypeIndex(int x, int y, int typeIndex) {
+		typeIndices[index(x, y)] = (byte) typeIndex;
+	}
+
+	public boolean isSet(int x, int y) {
+		return typeIndices[index(x, y)] != UNSET_TYPE;
+	}
+
+	/**
+	 * Reset the flows and the temperature of the cell x,y
+	 * @param x
+	 * @param y
+	 * @param temperature
+	 */
+	public void resetSite(int x, int y, float temperature) {
+		int index = index(x, y);
+
+		for(int dir = 0; dir < DIRECTIONS; dir++) {
+			if(singlePrecision) {
+				floatFlows[dir][index] = 0;
+			}else {
+				flows[dir][index] = 0;
+			}
+		}
+
+		temperatures[index] = temperature;
+	}
+
+	/**
+	 * Copy all cells which are part of both grids from the given grid
+	 * @param other
+	 */
+	public void copyFrom(SiteGrid other) {
+		copyFrom(other, 0, 0, 0, 0, Math.min(width, other.width), Math.min(height, other.height));
+	}
+
+	/**
+	 * Copy a block of cells of the given grid, starting at otherX,otherY, to this grid,
+	 * starting at x,y. Only the current flows are copied, they are converted if the grids
+	 * do not have the same precision.
+	 * @param other
+	 * @param otherX
+	 * @param otherY
+	 * @param x
+	 * @param y
+	 * @param copyWidth
+	 * @param copyHeight
+	 */
+	public void copyFrom(SiteGrid other, int otherX, int otherY, int x, int y, int copyWidth, int copyHeight) {
+		copyStateFrom(other, otherX, otherY, x, y, copyWidth, copyHeight);
+
+		for(int col = 0; col < copyWidth; col++) {
+			System.arraycopy(other.typeIndices, other.index(otherX + col, otherY), typeIndices, index(x + col, y), copyHeight);
+		}
+	}
+
+	/**
+	 * Copy the flows and the temperatures of a block of cells like
+	 * {@link #copyFrom(SiteGrid, int, int, int, int, int, int)}, the cells of this grid keep
+	 * their types
+	 * @param other
+	 * @param otherX
+	 * @param otherY
+	 * @param x
+	 * @param y
+	 * @param copyWidth
+	 * @param copyHeight
+	 */
+	public void copyStateFrom(SiteGrid other, int otherX, int otherY, int x, int y, int copyWidth, int copyHeight) {
+		for(int col = 0; col < copyWidth; col++) {
+			int from = other.index(otherX + col, otherY);
+			int to = index(x + col, y);
+
+			for(int dir = 0; dir < DIRECTIONS; dir++) {
+				if(!singlePrecision) {
+					other.copyFlows(dir, from, flows[dir], to, copyHeight);
+				}else if(other.singlePrecision) {
+					System.arraycopy(other.floatFlows[dir], from, floatFlows[dir], to, copyHeight);
+				}else {
+					for(int i = 0; i < copyHeight; i++) {
+						floatFlows[dir][to + i] = (float) other.flows[dir][from + i];
+					}
+				}
+			}
+
+			System.arraycopy(other.temperatures, from, temperatures, to, copyHeight);
+		}
+	}
+
+	/**
+	 * Creates a site object holding a copy of the values of the cell x,y
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public Site getSite(int x, int y) {
+		int index = index(x, y);
+
+		Site site = new Site(typeIndices[index], temperatures[index]);
+		for(int dir = 0; dir < DIRECTIONS; dir++) {
+			site.setFlow(dir, singlePrecision ? floatFlows[dir][index] : flows[dir][index]);
+		}
+
+		return site;
+	}
+
+}
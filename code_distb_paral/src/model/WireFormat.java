@@ -0,0 +1,241 @@
+package model;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+/**
+ * Binary format of the region data sent between the regions and to the manager. The data
+ * is packed into a flat byte array which travels as a single primitive array, instead of
+ * nested arrays or one object per cell.
+ *
+ * An array of values starts with the number of bytes per value, 8 for double precision or
+ * 4 for single precision, followed by the values. A block of cells starts with the number
+ * of bytes per flow, its width and its height, followed by the type indices of the cells,
+ * one byte per cell, their temperatures and the flows of the 4 directions, all column by
+ * column like in {@link SiteGrid}.
+ * @author beat
+ *
+ */
+public final class WireFormat {
+
+	public static final byte DOUBLE_PRECISION = 8;
+	public static final byte SINGLE_PRECISION = 4;
+
+	private static final int BLOCK_HEADER = 1 + 4 + 4;
+
+	private WireFormat() {
+	}
+
+	private static byte getPrecision(boolean singlePrecision) {
+		return singlePrecision ? SINGLE_PRECISION : DOUBLE_PRECISION;
+	}
+
+	/**
+	 * Encodes the given values. The buffer is reused if it has the right size, so an
+	 * edge sent every step needs no new memory.
+	 * @param values
+	 * @param singlePrecision if set, the values are sent as floats
+	 * @param buffer the buffer returned by the previous call or null
+	 * @return the encoded values
+	 */
+	public static byte[] encodeValues(double[] values, boolean singlePrecision, byte[] buffer) {
+		byte precision = getPrecision(singlePrecision);
+		int size = 1 + values.length * precision;
+
+		if(buffer == null || buffer.length != size) {
+			buffer = new byte[size];
+		}
+
+		ByteBuffer data = ByteBuffer.wrap(buffer);
+		data.put(precision);
+		putValues(data, values, 0, values.length, precision);
+
+		return buffer;
+	}
+
+	/**
+	 * Decodes values encoded by {@link #encodeValues(double[], boolean, byte[])} to the
+	 * given array
+	 * @param data
+	 * @param values
+	 */
+	public static void decodeValues(byte[] data, double[] values) {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		byte precision = buffer.get();
+
+		getValues(buffer, values, 0, (data.length - 1) / precision, precision);
+	}
+
+	/**
+	 * Encodes the cells of the block of the given grid starting at x,y
+	 * @param grid
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param singlePrecision if set, the flows are sent as floats
+	 * @return
+	 */
+	public static byte[] encodeBlock(SiteGrid grid, int x, int y, int width, int height, boolean singlePrecision) {
+		byte precision = getPrecision(singlePrecision);
+		int cells = width * height;
+		ByteBuffer data = ByteBuffer.allocate(BLOCK_HEADER + cells * (1 + 4 + SiteGrid.DIRECTIONS * precision));
+
+		data.put(precision);
+		data.putInt(width);
+		data.putInt(height);
+
+		byte [] typeIndices = grid.getTypeIndices();
+		for(int col = 0; col < width; col++) {
+			data.put(typeIndices, grid.index(x + col, y), height);
+		}
+
+		float [] temperatures = grid.getTemperatures();
+		for(int col = 0; col < width; col++) {
+			data.asFloatBuffer().put(temperatures, grid.index(x + col, y), height);
+			data.position(data.position() + height * 4);
+		}
+
+		double [][] flows = grid.getFlows();
+		float [][] floatFlows = grid.getFloatFlows();
+		for(int dir = 0; dir < SiteGrid.DIRECTIONS; dir++) {
+			for(int col = 0; col < width; col++) {
+				if(grid.isSinglePrecision()) {
+					putValues(data, floatFlows[dir], grid.index(x + col, y), height, precision);
+				}else {
+					putValues(data, flows[dir], grid.index(x + col, y), height, precision);
+				}
+			}
+		}
+
+		return data.array();
+	}
+
+	/**
+	 * Decodes a block encoded by {@link #encodeBlock(SiteGrid, int, int, int, int, boolean)}
+	 * to the given grid, starting at x,y. The next step flows of the grid are not changed.
+	 * @param data
+	 * @param grid
+	 * @param x
+	 * @param y
+	 */
+	public static void decodeBlock(byte[] data, SiteGrid grid, int x, int y) {
+		decodeBlock(data, grid.getTypeIndices(), grid.getTemperatures(), grid.getFlows(), grid.getFloatFlows(),
+				grid.index(x, y), grid.getHeight());
+	}
+
+	/**
+	 * Decodes a block encoded by {@link #encodeBlock(SiteGrid, int, int, int, int, boolean)}
+	 * to the given snapshot, starting at col,row
+	 * @param data
+	 * @param snapshot
+	 * @param col
+	 * @param row
+	 */
+	public static void decodeBlock(byte[] data, GridSnapshot snapshot, int col, int row) {
+		decodeBlock(data, snapshot.getTypeIndices(), snapshot.getTemperatures(), snapshot.getFlows(), null,
+				snapshot.index(row, col), snapshot.getRows());
+	}
+
+	/**
+	 * Decodes a block to the given arrays, which hold columns of columnLength values. The
+	 * flows are decoded to floatFlows unless it is null.
+	 * @param data
+	 * @param typeIndices
+	 * @param temperatures
+	 * @param flows
+	 * @param floatFlows
+	 * @param start position of the first cell of the block in the arrays
+	 * @param columnLength
+	 */
+	private static void decodeBlock(byte[] data, byte[] typeIndices, float[] temperatures, double[][] flows,
+			float[][] floatFlows, int start, int columnLength) {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		byte precision = buffer.get();
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+
+		for(int col = 0; col < width; col++) {
+			buffer.get(typeIndices, start + col * columnLength, height);
+		}
+
+		for(int col = 0; col < width; col++) {
+			buffer.asFloatBuffer().get(temperatures, start + col * columnLength, height);
+			buffer.position(buffer.position() + height * 4);
+		}
+
+		for(int dir = 0; dir < SiteGrid.DIRECTIONS; dir++) {
+			for(int col = 0; col < width; col++) {
+				if(floatFlows != null) {
+					getValues(buffer, floatFlows[dir], start + col * columnLength, height, precision);
+				}else {
+					getValues(buffer, flows[dir], start + col * columnLength, height, precision);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the width of an encoded block
+	 * @param data
+	 * @return
+	 */
+	public static int getBlockWidth(byte[] data) {
+		return ByteBuffer.wrap(data).getInt(1);
+	}
+
+	/**
+	 * Returns the height of an encoded block
+	 * @param data
+	 * @return
+	 */
+	public static int getBlockHeight(byte[] data) {
+		return ByteBuffer.wrap(data).getInt(5);
+	}
+
+	private static void putValues(ByteBuffer data, double[] values, int offset, int length, byte precision) {
+		if(precision == DOUBLE_PRECISION) {
+			DoubleBuffer doubles = data.asDoubleBuffer();
+			doubles.put(values, offset, length);
+			data.position(data.position() + length * 8);
+		}else {
+			for(int i = offset; i < offset + length; i++) {
+				data.putFloat((float) values[i]);
+			}
+		}
+	}
+
+	private static void putValues(ByteBuffer data, float[] values, int offset, int length, byte precision) {
+		if(precision == SINGLE_PRECISION) {
+			data.asFloatBuffer().put(values, offset, length);
+			data.position(data.position() + length * 4);
+		}else {
+			for(int i = offset; i < offset + length; i++) {
+				data.putDouble(values[i]);
+			}
+		}
+	}
+
+	private static void getValues(ByteBuffer data, double[] values, int offset, int length, byte precision) {
+		if(precision == DOUBLE_PRECISION) {
+			data.asDoubleBuffer().get(values, offset, length);
+			data.position(data.position() + length * 8);
+		}else {
+			for(int i = offset; i < offset + length; i++) {
+				values[i] = data.getFloat();
+			}
+		}
+	}
+
+	private static void getValues(ByteBuffer data, float[] values, int offset, int length, byte precision) {
+		if(precision == SINGLE_PRECISION) {
+			data.asFloatBuffer().get(values, offset, length);
+			data.position(data.position() + length * 4);
+		}else {
+			for(int i = offset; i < offset + length; i++) {
+				values[i] = (float) data.getDouble();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package utilities;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Scanner;
+
+/**
+ * Site type indexes of a grid configuration file. The first line of the file
+ * holds the number of rows and columns, each following line the type indexes of a row.
+ * @author beat
+ *
+ */
+public class GridFile {
+
+	private final static String SEP = ",";
+
+	private final int rows, cols;
+	private final int [][] siteTypes;
+
+	public GridFile(int rows, int cols, int[][] siteTypes) {
+		this.rows = rows;
+		this.cols = cols;
+		this.siteTypes = siteTypes;
+	}
+
+	public static GridFile read(File file) throws FileNotFoundException {
+		try (Scanner scanner = new Scanner(file)) {
+			String[] cellularAutomatonDim = scanner.nextLine().split(SEP);
+			int rows = Integer.parseInt(cellularAutomatonDim[0]);
+			int cols = Integer.parseInt(cellularAutomatonDim[1]);
+			int row = 0;
+
+			int [][] siteTypes = new int[cols][rows];
+
+			while (scanner.hasNextLine() && row < rows) {
+				String[] rowValues = scanner.nextLine().split(SEP);
+				for (int col = 0; col < rowValues.length && col < cols; col++) {
+					siteTypes[col][row] = Integer.parseInt(rowValues[col]);
+				}
+				row++;
+			}
+
+			return new GridFile(rows, cols, siteTypes);
+		}
+	}
+
+	/**
+	 * Returns this grid stretched or shrunk to the given size by taking the nearest cell
+	 * @param rows
+	 * @param cols
+	 * @return
+	 */
+	public GridFile scale(int rows, int cols) {
+		int [][] scaled = new int[cols][rows];
+
+		for (int col = 0; col < cols; col++) {
+			int sourceCol = (int) ((long) col * this.cols / cols);
+			for (int row = 0; row < rows; row++) {
+				scaled[col][row] = siteTypes[sourceCol][(int) ((long) row * this.rows / rows)];
+			}
+		}
+
+		return new GridFile(rows, cols, scaled);
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	/**
+	 * Returns the type indexes as [col][row]
+	 * @return
+	 */
+	public int[][] getSiteTypes() {
+		return siteTypes;
+	}
+
+}
@@ -4,25 +4,29 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Polygon;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowEvent;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 
+import model.GridSnapshot;
 import model.Site;
 import model.SiteType;
 import view.Simulator.ViewMode;
 import controller.IPixelFlowManager;
+import controller.SiteTypeEdits;
 
 /**
  * 
@@ -37,17 +41,33 @@ public class GridPanel extends JPanel {
 	private static final int PADDING = 0;
 	private static final float ALPHA_BLENDING_RATIO = 0.4f;
 	private static final NumberFormat NF = new DecimalFormat("#.###");
+	private static final int COLOR_TABLE_SIZE = 1024;
 
 	private final Dimension gridDim;
 	private int rows, cols;
 	private float squareWidth, squareHeight;
 	private IPixelFlowManager pixelFlowManager;
 	private int initRow = -1, initCol = -1;
+	private int dragTypeIndex = -1;
+
+	// Site types painted with the mouse, applied in a single batch on the next repaint
+	private final SiteTypeEdits pendingEdits = new SiteTypeEdits();
+
+	// While the simulation runs, the last frame published by the simulation thread. Only the
+	// latest frame is kept, a frame published before the previous one was painted is dropped.
+	private final AtomicReference<GridSnapshot> latestFrame = new AtomicReference<GridSnapshot>();
+	private volatile boolean live = false;
 	private ViewMode viewModeIndex = ViewMode.Blank;
 	
 	private ViewMode lastViewMode = null;
 	private BufferedImage drawBuffer = null;
 
+	// Colors of the site types blended with the flow and the temperature ramps
+	private List<SiteType> colorTableSiteTypes = null;
+	private int [] siteColors;
+	private int [][] flowColors;
+	private int [][] temperatureColors;
+
 	public GridPanel(Dimension gridDim, IPixelFlowManager pixelFlow) {
 		this.gridDim = gridDim;
 		setPreferredSize(gridDim);
@@ -59,6 +79,7 @@ public class GridPanel extends JPanel {
 		addMouseListener(new MouseListener() {
 			@Override
 			public void mouseReleased(MouseEvent e) {
+				applyPendingEdits();
 				initRow = -1;
 				initCol = -1;
 			}
@@ -106,6 +127,27 @@ public class GridPanel extends JPanel {
 		return viewModeIndex;
 	}
 
+	/**
+	 * Set whether the simulation runs in another thread. While it runs, the panel paints
+	 * the frames published by {@link #publishFrame(GridSnapshot)} and never waits for the
+	 * manager. Otherwise it takes a snapshot of the manager itself.
+	 * @param live
+	 */
+	public void setLive(boolean live) {
+		this.live = live;
+		if (!live) {
+			latestFrame.set(null);
+		}
+	}
+
+	/**
+	 * Publish the frame to paint on the next repaint, can be called from any thread
+	 * @param frame
+	 */
+	public void publishFrame(GridSnapshot frame) {
+		latestFrame.set(frame);
+	}
+
 	@Override
 	public boolean contains(int x, int y) {
 		int row = (int) (y / (squareHeight + PADDING));
@@ -128,160 +170,218 @@ public class GridPanel extends JPanel {
 	}
 
 	private void updateModelAfterMouseDrag(int row, int col) {
+		if (row < 0 || col < 0 || row >= rows || col >= cols) {
+			return;
+		}
 		// if (row == initRow && col == initCol) return;
 		if (initRow == -1 || initCol == -1) {
 			initRow = row;
 			initCol = col;
+			dragTypeIndex = getSiteTypeIndex(row, col);
 			// pixelFlowManager.setNextSiteType(row, col);
 		}
-		pixelFlowManager.setSameSiteTypeIndexAsIn(row, col, initRow, initCol);
+		// The drag events come much faster than the repaints, the sites are sent to the
+		// regions all together before the next repaint
+		pendingEdits.set(row, col, dragTypeIndex);
 		repaint();
 	}
 
+	private int getSiteTypeIndex(int row, int col) {
+		// While the simulation runs, the regions may move in the middle of a step, the type
+		// is read from the last frame if there is one
+		GridSnapshot frame = live ? latestFrame.get() : null;
+		if (frame != null && row < frame.getRows() && col < frame.getCols()) {
+			return frame.getTypeIndex(row, col);
+		}
+		return pixelFlowManager.getSiteTypeIndex(row, col);
+	}
+
+	private void applyPendingEdits() {
+		if (!pendingEdits.isEmpty()) {
+			pixelFlowManager.applySiteTypeEdits(pendingEdits);
+			pendingEdits.clear();
+		}
+	}
+
 	@Override
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
 		long start = System.currentTimeMillis();
-		
-		drawBuffer = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
-		final Graphics2D g2d = (Graphics2D)drawBuffer.getGraphics();
 
-		g2d.setPaint(BACKGROUND_COLOR);
-		g2d.fill(new Rectangle2D.Float(0, 0, gridDim.width, gridDim.height));
-		
-		
+		applyPendingEdits();
+
+		// The image is only allocated again when the panel is resized, its pixels are
+		// written directly
+		int width = Math.max(getWidth(), 1);
+		int height = Math.max(getHeight(), 1);
+		if (drawBuffer == null || drawBuffer.getWidth() != width || drawBuffer.getHeight() != height) {
+			drawBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		}
+		int [] pixels = ((DataBufferInt) drawBuffer.getRaster().getDataBuffer()).getData();
+		Arrays.fill(pixels, BACKGROUND_COLOR.getRGB());
+
+		GridSnapshot frame = null;
 		if(viewModeIndex != ViewMode.Blank) {
-		    SiteType [][] siteTypes = pixelFlowManager.getAllSiteTypes();
-		    
-		    double [][] globalFlows = null;
-		    if(viewModeIndex == ViewMode.GlobalFlow) {
-		        globalFlows = pixelFlowManager.getAllFlows();
-		    }
-		    
-			for (int r = 0; r < rows; r++) {
-				for (int c = 0; c < cols; c++) {
-					SiteType siteType = siteTypes[c][r]; //pixelFlowManager.getSiteType(r, c);
-					Color siteTypeInitColor = siteType.getColor();
-					switch (viewModeIndex) {
-					case GlobalFlow:
-						Color globalFlowColor = blend(siteTypeInitColor,
-								getColorFromFlowGlobalValue(globalFlows[c][r]),
-								ALPHA_BLENDING_RATIO);
-						paintSquare(g2d, drawBuffer, globalFlowColor, r, c);
-						break;
-					case DirectionalFlow:
-						Color bottomFlowColor = blend(siteTypeInitColor,
-								getWaveColorFromFlowValue(pixelFlowManager.getFlowAtPosition(r, c, Site.BOTTOM)),
-								ALPHA_BLENDING_RATIO);
-						Color leftFlowColor = blend(siteTypeInitColor,
-								getWaveColorFromFlowValue(pixelFlowManager.getFlowAtPosition(r, c, Site.LEFT)),
-								ALPHA_BLENDING_RATIO);
-						Color topFlowColor = blend(siteTypeInitColor,
-								getWaveColorFromFlowValue(pixelFlowManager.getFlowAtPosition(r, c, Site.TOP)),
-								ALPHA_BLENDING_RATIO);
-						Color rightFlowColor = blend(siteTypeInitColor,
-								getWaveColorFromFlowValue(pixelFlowManager.getFlowAtPosition(r, c, Site.RIGHT)),
-								ALPHA_BLENDING_RATIO);
-						paint4TrianglesInSquare(g2d, bottomFlowColor, leftFlowColor, topFlowColor, rightFlowColor, r, c);
-						break;
-					case Temperature:
-						Color temperatureColor = blend(siteTypeInitColor,
-								getColorFromTemperatureValue(pixelFlowManager.getTemperatureAtPosition(r, c)),
-								ALPHA_BLENDING_RATIO);
-						paintSquare(g2d, drawBuffer, temperatureColor, r, c);
-						break;
-					case Sites:
-						paintSquare(g2d, drawBuffer, siteTypeInitColor, r, c);
-						break;
-					case Blank:
-						break;
-					}
-				}
-			}
+		    frame = live ? latestFrame.get() : pixelFlowManager.getSnapshot();
 		}
-		
+
+		if(frame != null) {
+			renderFrame(frame, pixels, width, height);
+		}
+
         ((Graphics2D) g).drawImage(drawBuffer, null, 0, 0);
-		
+
 		//System.out.println("Painted in "+(System.currentTimeMillis() - start)+" ms");
 	}
 
-	private void paintSquare(Graphics2D g2d, BufferedImage raw, Color color, int row, int col) {
-		float x = PADDING + col * (squareWidth + PADDING);
-		float y = PADDING + row * (squareHeight + PADDING);
-        
-		if(squareWidth <= 1 && squareHeight <= 1) {
-		    raw.setRGB((int)x, (int)y, color.getRGB());
-		}else {
-		    g2d.setColor(color);
-		    g2d.fillRect((int)x, (int)y, (int)Math.max(Math.ceil(squareWidth), 1), (int)Math.max(1, Math.ceil(squareHeight)));
+	/**
+	 * Write the sites of the frame to the pixels of the image. The colors are taken from
+	 * the color tables, nothing is allocated per site.
+	 * @param frame
+	 * @param pixels
+	 * @param width
+	 * @param height
+	 */
+	private void renderFrame(GridSnapshot frame, int[] pixels, int width, int height) {
+		updateColorTables(frame.getSiteTypes());
+
+		// The grid may have been resized since the frame was taken
+		int frameRows = Math.min(rows, frame.getRows());
+		int frameCols = Math.min(cols, frame.getCols());
+		int cellWidth = (int) Math.max(Math.ceil(squareWidth), 1);
+		int cellHeight = (int) Math.max(Math.ceil(squareHeight), 1);
+		double flowScale = COLOR_TABLE_SIZE / pixelFlowManager.getMaxFlow();
+
+		byte [] typeIndices = frame.getTypeIndices();
+		float [] temperatures = frame.getTemperatures();
+		double [] globalFlows = frame.getGlobalFlows();
+
+		for (int c = 0; c < frameCols; c++) {
+			int x0 = (int) (PADDING + c * (squareWidth + PADDING));
+			int x1 = Math.min(x0 + cellWidth, width);
+			if (x0 >= x1) {
+				break;
+			}
+
+			for (int r = 0; r < frameRows; r++) {
+				int y0 = (int) (PADDING + r * (squareHeight + PADDING));
+				int y1 = Math.min(y0 + cellHeight, height);
+				if (y0 >= y1) {
+					break;
+				}
+
+				int index = frame.index(r, c);
+				int typeIndex = typeIndices[index];
+				switch (viewModeIndex) {
+				case GlobalFlow:
+					fillRect(pixels, width, x0, y0, x1, y1,
+							flowColors[typeIndex][getFlowColorIndex(globalFlows[index], flowScale)]);
+					break;
+				case DirectionalFlow:
+					int [] colors = flowColors[typeIndex];
+					fillTriangles(pixels, width, x0, y0, x1, y1, cellWidth, cellHeight,
+							colors[getFlowColorIndex(frame.getSiteFlow(r, c, Site.BOTTOM), flowScale)],
+							colors[getFlowColorIndex(frame.getSiteFlow(r, c, Site.LEFT), flowScale)],
+							colors[getFlowColorIndex(frame.getSiteFlow(r, c, Site.TOP), flowScale)],
+							colors[getFlowColorIndex(frame.getSiteFlow(r, c, Site.RIGHT), flowScale)]);
+					break;
+				case Temperature:
+					fillRect(pixels, width, x0, y0, x1, y1,
+							temperatureColors[typeIndex][getTemperatureColorIndex(temperatures[index])]);
+					break;
+				case Sites:
+					fillRect(pixels, width, x0, y0, x1, y1, siteColors[typeIndex]);
+					break;
+				case Blank:
+					break;
+				}
+			}
 		}
 	}
 
-	private void paint4TrianglesInSquare(Graphics2D g2d, Color bottomColor, Color leftColor, Color topColor,
-			Color rightColor, int row, int col) {
-		int x0 = Math.round(PADDING + col * (squareWidth + PADDING));
-		int y0 = Math.round(PADDING + row * (squareHeight + PADDING));
-		Polygon triangle = new Polygon();
-		int p1x = x0, p1y = y0 + (int) Math.ceil(squareHeight);
-		int p2x = x0, p2y = y0;
-		int p3x = x0 + (int) Math.ceil(squareWidth), p3y = y0;
-		int p4x = x0 + (int) Math.ceil(squareWidth), p4y = y0 + (int) Math.ceil(squareHeight);
-		int p5x = x0 + (int) Math.ceil(squareWidth / 2), p5y = y0 + (int) Math.ceil(squareHeight / 2);
-
-		// Paint triangle BOTTOM
-		int[] xs0 = { p1x, p5x, p4x };
-		int[] ys0 = { p1y, p5y, p4y };
-		triangle = new Polygon(xs0, ys0, xs0.length);
-		g2d.setColor(bottomColor);
-		g2d.fillPolygon(triangle);
-
-		// Paint triangle LEFT
-		int[] xs1 = { p2x, p5x, p1x };
-		int[] ys1 = { p2y, p5y, p1y };
-		triangle = new Polygon(xs1, ys1, xs1.length);
-		g2d.setColor(leftColor);
-		g2d.fillPolygon(triangle);
-
-		// Paint triangle TOP
-		int[] xs2 = { p2x, p5x, p3x };
-		int[] ys2 = { p2y, p5y, p3y };
-		triangle = new Polygon(xs2, ys2, xs2.length);
-		g2d.setColor(topColor);
-		g2d.fillPolygon(triangle);
-
-		// Paint triangle RIGHT
-		int[] xs3 = { p4x, p5x, p3x };
-		int[] ys3 = { p4y, p5y, p3y };
-		triangle = new Polygon(xs3, ys3, xs3.length);
-		g2d.setColor(rightColor);
-		g2d.fillPolygon(triangle);
+	/**
+	 * Compute the colors of every site type blended with the flow and the temperature
+	 * ramps, unless they are already computed for these site types
+	 * @param siteTypes
+	 */
+	private void updateColorTables(List<SiteType> siteTypes) {
+		if (siteTypes == colorTableSiteTypes) {
+			return;
+		}
+
+		int types = siteTypes.size();
+		siteColors = new int[types];
+		flowColors = new int[types][COLOR_TABLE_SIZE + 1];
+		temperatureColors = new int[types][COLOR_TABLE_SIZE];
+
+		for (int t = 0; t < types; t++) {
+			Color siteTypeInitColor = siteTypes.get(t).getColor();
+			siteColors[t] = siteTypeInitColor.getRGB();
+
+			for (int i = 0; i < COLOR_TABLE_SIZE; i++) {
+				float ratio = (i + 0.5f) / COLOR_TABLE_SIZE;
+				flowColors[t][i] = blend(siteTypeInitColor, getHSVColorFromValue(ratio, 1.0f),
+						ALPHA_BLENDING_RATIO).getRGB();
+				temperatureColors[t][i] = blend(siteTypeInitColor, blend(Color.BLUE, Color.RED, ratio),
+						ALPHA_BLENDING_RATIO).getRGB();
+			}
+
+			// A flow of 0 has no color
+			flowColors[t][COLOR_TABLE_SIZE] = siteColors[t];
+		}
+
+		colorTableSiteTypes = siteTypes;
 	}
 
-	private Color getWaveColorFromFlowValue(double value) {
-		/*
-		 * Color color = Color.red; for (int i = 0; i < 30; i++) { if (Math.abs(value)
-		 * >= (1 - i * 0.033333)) { int quantityRed = 255; int quantityGreen = 255; if
-		 * (i < 15) quantityRed = i * 17; else quantityGreen = 255 - (i - 15) * 17;
-		 * return new Color(quantityRed, quantityGreen, 0); } } return color;
-		 */
-		/*
-		 * for (int i = 0; i < 30; i++) { if (Math.abs(value) >= (1 - i * 0.033333)) {
-		 * int quantityRed = 255; int quantityGreen = 255; if (i < 15) quantityRed = i *
-		 * 17; else quantityGreen = 255 - (i - 15) * 17; return new Color(quantityRed,
-		 * quantityGreen, 0); } } return null;
-		 */
-		return getHSVColorFromValue((float) value/* , 0.00001f */,
-				(float) pixelFlowManager.getMaxFlow() /* / 10.0f/*0.1f */);
+	/**
+	 * Returns the position of the flow value in the flow color table, the values above
+	 * the maximum flow get the color of the maximum
+	 * @param value
+	 * @param scale size of the table divided by the maximum flow
+	 * @return
+	 */
+	private static int getFlowColorIndex(double value, double scale) {
+		if ((float) value == 0.0f) {
+			return COLOR_TABLE_SIZE;
+		}
+		return (int) Math.min(Math.abs(value) * scale, COLOR_TABLE_SIZE - 1);
 	}
 
-	private Color getColorFromFlowGlobalValue(double value) {
-		return getHSVColorFromValue((float) value/* , 0.00001f */,
-				(float) pixelFlowManager.getMaxFlow() /* / 10.0f/*0.1f */);
+	private static int getTemperatureColorIndex(double value) {
+		double ratio = 0.5 + 0.5 * Math.tanh((value - 50.0) / 25.0);
+		return (int) Math.min(ratio * COLOR_TABLE_SIZE, COLOR_TABLE_SIZE - 1);
 	}
 
-	private Color getColorFromTemperatureValue(double value) {
-		return blend(Color.BLUE, Color.RED,
-				(float) (0.5 + 0.5 * Math.tanh((value - 50.0) / 25.0))/* (float) value / 100.0f */);
+	private static void fillRect(int[] pixels, int width, int x0, int y0, int x1, int y1, int rgb) {
+		for (int y = y0; y < y1; y++) {
+			Arrays.fill(pixels, y * width + x0, y * width + x1, rgb);
+		}
+	}
+
+	/**
+	 * Fill the square with 4 triangles meeting at its center, each pixel gets the color of
+	 * the side it is closest to
+	 */
+	private static void fillTriangles(int[] pixels, int width, int x0, int y0, int x1, int y1, int cellWidth,
+			int cellHeight, int bottomColor, int leftColor, int topColor, int rightColor) {
+		// Pixel centers in units of 1 / (2 * cellWidth * cellHeight) of the square
+		int size = 2 * cellWidth * cellHeight;
+
+		for (int y = y0; y < y1; y++) {
+			int v = (2 * (y - y0) + 1) * cellWidth;
+			int line = y * width;
+
+			for (int x = x0; x < x1; x++) {
+				int u = (2 * (x - x0) + 1) * cellHeight;
+				int color;
+				if (v > u) {
+					color = u + v > size ? bottomColor : leftColor;
+				} else {
+					color = u + v < size ? topColor : rightColor;
+				}
+				pixels[line + x] = color;
+			}
+		}
 	}
 
 	private static Color getHSVColorFromValue(float value, /* float min, */ float max) {
@@ -3,12 +3,21 @@ package controller;
 import java.util.HashMap;
 import java.util.Map;
 
+import model.ActivityMask;
 import model.Site;
+import model.SiteGrid;
 import model.SiteObstacle;
+import model.SiteRuns;
 import model.SiteSource;
 import model.SiteType;
+import model.SourceValues;
+import model.WireFormat;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import ch.icosys.popjava.core.PopJava;
 import ch.icosys.popjava.core.annotation.POPAsyncConc;
@@ -39,34 +48,96 @@ public class PixelFlowRegion {
 
 		private final int index;
 
+		private static final Direction [] VALUES = values();
+
 		Direction(int index){
 			this.index = index;
 		}
 	}
 
 	private final SiteType [] siteTypes;
-    private Site[][] sites;
-    private Site[][] tempSites;
+
+    // Values of the sources, computed once per step. The global flows are read at other
+    // times, possibly while a step is computed, so they have their own table.
+    private final SourceValues stepSourceValues;
+    private final SourceValues querySourceValues;
+
+    // Whether the temperature of the sites of a type changes, indexed by type index
+    private final boolean [] heatedTypes;
+
+    // Runs of sites of the same type of every column, built again at the start of a step
+    // after the types changed
+    private SiteRuns runs;
+    private boolean typesChanged = true;
+
+    private SiteGrid sites;
+    private SiteGrid previousSites;
+    private int previousX, previousY;
     private int x, y;
     private final double deltaTimePerIteration;
 
     private int globalRows, globalCols;
+
+    private boolean [] temperatureUpdated = new boolean[0];
+
+    // Tiles of the sites reached by the flows, the other sites are skipped
+    private ActivityMask activity;
 	private int cores;
 
     private double [][] neighbourFlows = new double[Direction.values().length][];
 
+    // Encoded edges sent to the neighbours, the buffers are reused every step
+    private byte [][] sentFlows = new byte[Direction.values().length][];
+
+    // If set, the flows are sent to the neighbours and to the manager with single precision
+    private boolean singlePrecisionTransfers = false;
+
+    // Whether the flows of the sites are stored as floats
+    private boolean singlePrecisionFlows = false;
+
     private Map<Direction, PixelFlowRegion> neighbours = new HashMap<>();
 
+    // Step whose flows are computed, the edges sent to the neighbours are tagged with it
+    private long currentStep = 0;
+
+    // Edges received from the neighbours, by parity of their step and flow direction. A
+    // neighbour is at most one step ahead, as it needs our edges to finish its own step.
+    private final double [][][] receivedFlows = new double[2][Direction.values().length][];
+
+    // Released once per received edge, by parity of its step
+    private final Semaphore [] receivedHalos = {new Semaphore(0), new Semaphore(0)};
+
+    // Computes the requested steps one after the other. Requesting a step returns at once,
+    // also when the region is a local object, so all regions can wait for each other's edges.
+    private final ExecutorService stepper = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "region-stepper");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+    // Number of steps completed by step(), guarded by stepLock
+    private final Object stepLock = new Object();
+    private long completedSteps = 0;
+
     public PixelFlowRegion(){
         sites = null;
         deltaTimePerIteration = 0;
         siteTypes = null;
+        stepSourceValues = null;
+        querySourceValues = null;
+        heatedTypes = null;
     }
 
 	@POPObjectDescription(jvmParameters = "-XX:+UseG1GC -Xmx5500m -XX:MinHeapFreeRatio=5 -XX:MaxHeapFreeRatio=12")
     public PixelFlowRegion(final double deltaTimePerIteration, SiteType [] siteTypes, @POPConfig(Type.URL) String url, int cores) {
     	this.deltaTimePerIteration = deltaTimePerIteration;
     	this.siteTypes = siteTypes;
+    	this.stepSourceValues = new SourceValues(siteTypes);
+    	this.querySourceValues = new SourceValues(siteTypes);
+    	this.heatedTypes = getHeatedTypes(siteTypes);
 		this.cores = cores;
     }
 
@@ -79,23 +150,33 @@ public class PixelFlowRegion {
     	this.globalCols = globalCols;
 
     	if(sites == null || !copy) {
-    		this.sites = new Site[width][height];
-    	}else if(sites.length != width || sites[0].length != height){
-    		Site [][] newSites = new Site[width][height];
-
-    		for(int xLoop = 0; xLoop < sites.length && xLoop < width; xLoop++) {
-            	for(int yLoop = 0; yLoop < sites[x].length && yLoop < height; yLoop++) {
-            		newSites[xLoop][yLoop] = sites[xLoop][yLoop];
-            	}
-    		}
+    		this.sites = new SiteGrid(width, height, singlePrecisionFlows);
+    	}else if(sites.getWidth() != width || sites.getHeight() != height){
+    		SiteGrid newSites = new SiteGrid(width, height, singlePrecisionFlows);
+    		newSites.copyFrom(sites);
 
     		this.sites = newSites;
     	}
 
+    	if(temperatureUpdated.length != width) {
+    		temperatureUpdated = new boolean[width];
+    	}
+
+    	activity = new ActivityMask(width, height);
+    	activity.reset(sites, siteTypes);
+    	typesChanged = true;
+
     	neighbourFlows[Direction.UP.index] = new double[width];
     	neighbourFlows[Direction.DOWN.index] = new double[width];
     	neighbourFlows[Direction.LEFT.index] = new double[height];
     	neighbourFlows[Direction.RIGHT.index] = new double[height];
+
+    	for(double [][] edges : receivedFlows) {
+    		edges[Direction.UP.index] = new double[width];
+    		edges[Direction.DOWN.index] = new double[width];
+    		edges[Direction.LEFT.index] = new double[height];
+    		edges[Direction.RIGHT.index] = new double[height];
+    	}
     }
 
     private PixelFlowRegion fake;
@@ -108,58 +189,229 @@ public class PixelFlowRegion {
 
 	@POPSyncConc
     public void initSites(int defaultSiteTypeIndex, float initialTemperature, boolean copy) {
-    	for(int x = 0; x < sites.length; x++) {
-        	for(int y = 0; y < sites[x].length; y++) {
-        		if(copy && sites[x][y] != null) {
-        			sites[x][y].resetFlows();
-        			sites[x][y].setTemperature(initialTemperature);
-        		}else {
-        			sites[x][y] = new Site(defaultSiteTypeIndex, initialTemperature);
+    	for(int x = 0; x < sites.getWidth(); x++) {
+        	for(int y = 0; y < sites.getHeight(); y++) {
+        		if(!copy || !sites.isSet(x, y)) {
+        			sites.setTypeIndex(x, y, defaultSiteTypeIndex);
         		}
+        		sites.resetSite(x, y, initialTemperature);
         	}
     	}
+
+    	activity.reset(sites, siteTypes);
+    	typesChanged = true;
     }
 
 	@POPSyncSeq
     public Site getSite(int row, int col) {
-    	return sites[col - x][row - y];
+    	return sites.getSite(col - x, row - y);
     }
 
 	@POPSyncConc
-    public void setSiteType(int col, int row, int type) {
-    	sites[col - x][row - y].setTypeIndex(type);
+    public void setSiteType(final int col, final int row, final int type) {
+    	runBetweenSteps(new Runnable() {
+			@Override
+			public void run() {
+				sites.setTypeIndex(col - x, row - y, type);
+				typesChanged = true;
+
+				if(siteTypes[type] instanceof SiteSource) {
+					activity.activate(col - x, row - y);
+				}
+			}
+		});
     }
 
 	@POPSyncConc
-    public void setFlow(int col, int row, int flowIndex, double value) {
-    	tempSites[col - x][row - y].getFlows()[flowIndex] = value;
+    public void setFlow(final int col, final int row, final int flowIndex, final double value) {
+    	runBetweenSteps(new Runnable() {
+			@Override
+			public void run() {
+				sites.setNextFlow(flowIndex, sites.index(col - x, row - y), value);
+				activity.activate(col - x, row - y);
+			}
+		});
     }
 
 	@POPSyncSeq
     public Site[][] getAllSites(){
-        return sites;
-    }
-
-	@POPSyncSeq
-    public int[][] getSiteTypes() {
-        int [][] types = new int[sites.length][sites[0].length];
+        Site [][] allSites = new Site[sites.getWidth()][sites.getHeight()];
 
-        for(int x = 0; x < types.length; x++) {
-            for(int y = 0; y < types[0].length; y++) {
-                types[x][y] = sites[x][y].getTypeIndex();
+        for(int x = 0; x < allSites.length; x++) {
+            for(int y = 0; y < allSites[0].length; y++) {
+                allSites[x][y] = sites.getSite(x, y);
             }
         }
 
-        return types;
+        return allSites;
+    }
+
+    /**
+     * Returns the type indices of the sites of this region, one byte per site, column by column
+     * @return
+     */
+	@POPSyncSeq
+    public byte[] getSiteTypes() {
+        return sites.getTypeIndices().clone();
     }
 
+    /**
+     * Returns all the sites of this region, encoded by {@link WireFormat}
+     * @return
+     */
+	@POPSyncSeq
+	public byte[] getSiteBlock() {
+		return WireFormat.encodeBlock(sites, 0, 0, sites.getWidth(), sites.getHeight(), singlePrecisionTransfers);
+	}
+
+    /**
+     * If set, the flows are sent with single precision, which halves the size of the edges
+     * and of the flows read by the manager but rounds the flows received by the neighbours
+     * @param singlePrecisionTransfers
+     */
+	@POPSyncConc
+	public void setSinglePrecisionTransfers(boolean singlePrecisionTransfers) {
+		this.singlePrecisionTransfers = singlePrecisionTransfers;
+	}
+
+    /**
+     * If set, the flows are stored as floats, which halves the memory read and written by
+     * every step. The current sites are converted.
+     * @param singlePrecisionFlows
+     */
+	@POPSyncConc
+	public void setSinglePrecisionFlows(boolean singlePrecisionFlows) {
+		this.singlePrecisionFlows = singlePrecisionFlows;
+
+		if(sites != null && sites.isSinglePrecision() != singlePrecisionFlows) {
+			SiteGrid converted = new SiteGrid(sites.getWidth(), sites.getHeight(), singlePrecisionFlows);
+			converted.copyFrom(sites);
+
+			sites = converted;
+		}
+	}
+
+    /**
+     * Request the given step of this region and return without waiting for it. The steps
+     * of a region are computed in the order they are requested, so several steps can be
+     * requested at once. The region exchanges the edges with its neighbours by itself,
+     * use {@link #awaitStep(long)} to wait for the end of a step.
+     * @param step the step number, starting at 0
+     * @param elapsedTime simulated time at the start of the step
+     * @param fusedStep if set, flows and temperatures are computed in a single sweep
+     */
+	@POPAsyncConc
+	public void step(final long step, final double elapsedTime, final boolean fusedStep) {
+		stepper.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					computeStep(step, elapsedTime, fusedStep);
+				}catch(Throwable e) {
+					e.printStackTrace();
+					System.exit(0);
+				}
+			}
+		});
+	}
+
+    /**
+     * Request the steps firstStep to firstStep + count - 1 of this region and return without
+     * waiting for them. The regions advance on their own, exchanging only the edges with
+     * their neighbours, so the manager needs a single call for any number of steps.
+     * @param firstStep
+     * @param count
+     * @param fusedStep if set, flows and temperatures are computed in a single sweep
+     */
+	@POPAsyncConc
+	public void runSteps(final long firstStep, final int count, final boolean fusedStep) {
+		stepper.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for(long step = firstStep; step < firstStep + count; step++) {
+						computeStep(step, step * deltaTimePerIteration, fusedStep);
+					}
+				}catch(Throwable e) {
+					e.printStackTrace();
+					System.exit(0);
+				}
+			}
+		});
+	}
+
+	private void computeStep(long step, double elapsedTime, boolean fusedStep) {
+		if(step != currentStep) {
+			throw new IllegalStateException("Step " + step + " requested, region is at step " + currentStep);
+		}
+
+		prepareFlowUpdate();
+
+		if(fusedStep) {
+			updateFlowsAndTemperatures(elapsedTime);
+			finishFusedFlowUpdate();
+		}else {
+			updateFlows(elapsedTime);
+			finishFlowUpdate();
+			updateTemperatures();
+		}
+
+		synchronized (stepLock) {
+			completedSteps = step + 1;
+			stepLock.notifyAll();
+		}
+	}
+
+    /**
+     * Wait until the given step is completed by {@link #step(long, double, boolean)}
+     * @param step
+     */
+	@POPSyncConc
+	public void awaitStep(long step) {
+		synchronized (stepLock) {
+			while(completedSteps <= step) {
+				try {
+					stepLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+    /**
+     * Run the task on the stepper and wait for it. The task runs after the steps requested
+     * so far, never while the sites are computed, so it can change the sites and the
+     * activity of the region.
+     * @param task
+     */
+	private void runBetweenSteps(Runnable task) {
+		try {
+			stepper.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
 	@POPSyncConc
 	public void prepareFlowUpdate() {
-    	//Create copy of current sites
-    	tempSites = new Site[sites.length][sites[0].length];
-		for (int row = 0; row < tempSites.length; row++) {
-			for (int col = 0; col < tempSites[0].length; col++) {
-				tempSites[row][col] = new Site(sites[row][col].getTypeIndex(), sites[row][col].getTemperature());
+		if (typesChanged) {
+			typesChanged = false;
+			runs = new SiteRuns(sites);
+		}
+
+    	//Clear the buffer receiving the new flows, it stays empty in the inactive tiles
+		int height = sites.getHeight();
+
+		for (int x = 0; x < sites.getWidth(); x++) {
+			for (int y = activity.getNextActiveRow(x, 0); y < height; ) {
+				int end = activity.getActiveRowsEnd(x, y);
+
+				sites.clearNextFlows(x, y, end);
+				y = activity.getNextActiveRow(x, end);
 			}
 		}
 	}
@@ -169,57 +421,152 @@ public class PixelFlowRegion {
 
 			PixelFlowRegion me = (PixelFlowRegion) PopJava.getThis(this);
 
-    	for (int x = 0; x < sites.length; x++) {
-			for (int y = 0; y < sites[0].length; y++) {
-				SiteType siteTypeXY = getSiteType(x, y);
-				if (siteTypeXY instanceof SiteSource) {
-					float sourceValue = ((SiteSource) siteTypeXY).getValue(elapsedTime);
-
-					updateTempSite(x + 1, y, Direction.RIGHT, sourceValue);
-					updateTempSite(x - 1, y, Direction.LEFT, sourceValue);
-					updateTempSite(x, y + 1, Direction.DOWN, sourceValue);
-					updateTempSite(x, y - 1, Direction.UP, sourceValue);
-
-				} else {
-					SiteObstacle so = (SiteObstacle) siteTypeXY;
-					double[] gammaFlowPartXY = multiply(so.getGammaMatrix(), sites[x][y].getFlows());
-					double[] betaFlowPartXY = multiply(so.getBetaMatrix(), sites[x][y].getFlows());
-
-					updateTempSite(x + 1, y, Direction.RIGHT, gammaFlowPartXY[Direction.RIGHT.index] + betaFlowPartXY[Direction.RIGHT.index]);
-					updateTempSite(x - 1, y, Direction.LEFT, gammaFlowPartXY[Direction.LEFT.index] + betaFlowPartXY[Direction.LEFT.index]);
-					updateTempSite(x, y + 1, Direction.DOWN, gammaFlowPartXY[Direction.DOWN.index] + betaFlowPartXY[Direction.DOWN.index]);
-					updateTempSite(x, y - 1, Direction.UP, gammaFlowPartXY[Direction.UP.index] + betaFlowPartXY[Direction.UP.index]);
-				}
-			}
-		}
+    	updateFlows(0, sites.getWidth(), elapsedTime);
+
+    	sendFlowBuffers();
+    }
+
+	@POPSyncConc
+    public void updateFlowsAndTemperatures(double elapsedTime) {
+    	updateFlowsAndTemperatures(0, sites.getWidth(), elapsedTime);
 
     	sendFlowBuffers();
     }
 
+    /**
+     * Compute the new flows sent by the sites of the columns xStart to xEnd. The columns are
+     * computed run by run, the sites of the inactive tiles have no flows to send and are
+     * skipped.
+     * @param xStart
+     * @param xEnd
+     * @param elapsedTime
+     */
+    private void updateFlows(int xStart, int xEnd, double elapsedTime) {
+    	float [] sourceValues = stepSourceValues.getValues(elapsedTime);
+
+    	for (int x = xStart; x < xEnd; x++) {
+    		for (int run = runs.getFirstRun(x); run < runs.getFirstRun(x + 1); run++) {
+    			int type = runs.getType(run);
+    			int runEnd = runs.getEnd(run);
+
+    			for (int y = activity.getNextActiveRow(x, runs.getStart(run)); y < runEnd; ) {
+    				int end = Math.min(activity.getActiveRowsEnd(x, y), runEnd);
+
+    				if (stepSourceValues.isSource(type)) {
+    					updateSourceFlows(x, y, end, sourceValues[type]);
+    				} else {
+    					updateObstacleFlows(x, y, end, (SiteObstacle) siteTypes[type]);
+    				}
+
+    				y = activity.getNextActiveRow(x, end);
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Compute the flows sent by the sources yStart to yEnd of the column x, which send the
+     * same value in the 4 directions
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param sourceValue
+     */
+    private void updateSourceFlows(int x, int yStart, int yEnd, float sourceValue) {
+    	for (int y = yStart; y < yEnd; y++) {
+    		updateTempSite(x + 1, y, Direction.RIGHT, sourceValue);
+    		updateTempSite(x - 1, y, Direction.LEFT, sourceValue);
+    		updateTempSite(x, y + 1, Direction.DOWN, sourceValue);
+    		updateTempSite(x, y - 1, Direction.UP, sourceValue);
+    	}
+    }
+
+    /**
+     * Compute the flows sent by the sites yStart to yEnd of the column x, which all have the
+     * given obstacle type
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param so
+     */
+    private void updateObstacleFlows(int x, int yStart, int yEnd, SiteObstacle so) {
+    	double [][] flows = sites.getFlows();
+    	float [][] floatFlows = sites.getFloatFlows();
+
+    	for (int y = yStart; y < yEnd; y++) {
+    		int index = sites.index(x, y);
+    		double f0, f1, f2, f3;
+    		if (floatFlows != null) {
+    			f0 = floatFlows[0][index];
+    			f1 = floatFlows[1][index];
+    			f2 = floatFlows[2][index];
+    			f3 = floatFlows[3][index];
+    		} else {
+    			f0 = flows[0][index];
+    			f1 = flows[1][index];
+    			f2 = flows[2][index];
+    			f3 = flows[3][index];
+    		}
+    		double right, left, down, up;
+
+    		if (so.isPureAir()) {
+    			// All incoming flows are spread, half of them in every direction
+    			right = 0.5 * (f0 - f1 + f2 + f3);
+    			left = 0.5 * (f1 - f0 + f2 + f3);
+    			down = 0.5 * (f0 + f1 + f2 - f3);
+    			up = 0.5 * (f0 + f1 - f2 + f3);
+    		} else if (so.isPureWall()) {
+    			// All incoming flows are reflected back
+    			double gamma = so.getGamma();
+    			right = -gamma * f1;
+    			left = -gamma * f0;
+    			down = -gamma * f3;
+    			up = -gamma * f2;
+    		} else {
+    			double[][] s = so.getScatteringMatrix();
+    			right = s[0][0] * f0 + s[0][1] * f1 + s[0][2] * f2 + s[0][3] * f3;
+    			left = s[1][0] * f0 + s[1][1] * f1 + s[1][2] * f2 + s[1][3] * f3;
+    			down = s[2][0] * f0 + s[2][1] * f1 + s[2][2] * f2 + s[2][3] * f3;
+    			up = s[3][0] * f0 + s[3][1] * f1 + s[3][2] * f2 + s[3][3] * f3;
+    		}
+
+    		updateTempSite(x + 1, y, Direction.RIGHT, right);
+    		updateTempSite(x - 1, y, Direction.LEFT, left);
+    		updateTempSite(x, y + 1, Direction.DOWN, down);
+    		updateTempSite(x, y - 1, Direction.UP, up);
+    	}
+    }
+
+    /**
+     * Compute the new flows of the columns xStart to xEnd and, in the same sweep, the
+     * temperatures of the sites whose new flows are complete: once column x is computed, all
+     * the flows received by the inner sites of column x - 1 are known. The columns xStart and
+     * xEnd - 1 as well as the first and last row receive flows from outside of the sweep and
+     * are updated by {@link #finishFusedFlowUpdate()}.
+     * @param xStart
+     * @param xEnd
+     * @param elapsedTime
+     */
+    private void updateFlowsAndTemperatures(int xStart, int xEnd, double elapsedTime) {
+    	int height = sites.getHeight();
+
+    	for (int x = xStart; x < xEnd; x++) {
+    		updateFlows(x, x + 1, elapsedTime);
+
+    		if (x - 1 > xStart && height > 2) {
+    			updateTemperatures(x - 1, 1, height - 1, true);
+    			temperatureUpdated[x - 1] = true;
+    		}
+    	}
+    }
+
 	@POPSyncSeq
     private void sendFlowBuffers() {
-    	for(Direction dir : Direction.values()) {
+    	for(Direction dir : Direction.VALUES) {
     		if(neighbours.containsKey(dir)) {
-    			int xTarget = x;
-    			int yTarget = y;
-
-    			Direction flowDir = null;
-    			if(dir == Direction.UP) {
-    				yTarget--;
-    				flowDir = Direction.DOWN;
-    			}else if(dir == Direction.DOWN) {
-    				yTarget += sites[0].length;
-    				flowDir = Direction.UP;
-    			}else if(dir == Direction.LEFT) {
-    				xTarget--;
-    				flowDir = Direction.RIGHT;
-    			}else if(dir == Direction.RIGHT) {
-    				xTarget += sites.length;
-    				flowDir = Direction.LEFT;
-    			}
-
     			try {
-    			    neighbours.get(dir).setFlows(neighbourFlows[dir.index], xTarget, yTarget, dir);
+    			    sentFlows[dir.index] = WireFormat.encodeValues(neighbourFlows[dir.index], singlePrecisionTransfers, sentFlows[dir.index]);
+    			    neighbours.get(dir).setFlows(sentFlows[dir.index], dir, currentStep);
     			}catch(Throwable e) {
     			    e.printStackTrace();
     			    System.exit(0);
@@ -228,29 +575,52 @@ public class PixelFlowRegion {
     	}
     }
 
+    /**
+     * Receive the flows sent by a neighbour over the common edge. The edge is kept until
+     * the given step is finished, so it may arrive before this region starts that step.
+     * @param flows the edge encoded by {@link WireFormat#encodeValues(double[], boolean, byte[])}
+     * @param dir direction of the flows, the neighbour is on the opposite side
+     * @param step
+     */
 	@POPAsyncConc
-    public void setFlows(double [] flows, int xTarget, int yTarget, Direction dir) {
-    	for(int i = 0; i < flows.length; i++) {
-    		int col;
-    		int row;
-
-        	if(dir == Direction.UP || dir == Direction.DOWN) {
-        		col = xTarget + i;
-        		row = yTarget ;
-        	}else {
-        		col = xTarget ;
-        		row = yTarget + i;
-        	}
+    public void setFlows(byte [] flows, Direction dir, long step) {
+		WireFormat.decodeValues(flows, receivedFlows[(int) (step & 1)][dir.index]);
+
+    	receivedHalos[(int) (step & 1)].release();
+    }
 
-        	setFlow(col, row, dir.index, flows[i]);
+    /**
+     * Wait until all the edges of the neighbours for the current step are received, then
+     * copy them to the new flows
+     */
+    private void awaitFlows() {
+    	int parity = (int) (currentStep & 1);
+
+    	receivedHalos[parity].acquireUninterruptibly(neighbours.size());
+
+    	// The whole edge is copied at once, a column edge is contiguous in the flow arrays
+    	double [][] edges = receivedFlows[parity];
+    	if(neighbours.containsKey(Direction.UP)) {
+    		sites.setNextFlowRow(Direction.DOWN.index, 0, 0, edges[Direction.DOWN.index]);
+    	}
+    	if(neighbours.containsKey(Direction.DOWN)) {
+    		sites.setNextFlowRow(Direction.UP.index, 0, sites.getHeight() - 1, edges[Direction.UP.index]);
+    	}
+    	if(neighbours.containsKey(Direction.LEFT)) {
+    		sites.setNextFlowColumn(Direction.RIGHT.index, 0, 0, edges[Direction.RIGHT.index]);
+    	}
+    	if(neighbours.containsKey(Direction.RIGHT)) {
+    		sites.setNextFlowColumn(Direction.LEFT.index, sites.getWidth() - 1, 0, edges[Direction.LEFT.index]);
     	}
+
+    	currentStep++;
     }
 
 	@POPSyncConc
     public void updateTempSite(int x, int y, Direction flowDir, double value) {
     	//We are in our own grid
-    	if(x >= 0 && y >= 0 && x < sites.length && y < sites[0].length) {
-    		tempSites[x][y].getFlows()[flowDir.index] = value;
+    	if(x >= 0 && y >= 0 && x < sites.getWidth() && y < sites.getHeight()) {
+    		sites.setNextFlow(flowDir.index, sites.index(x, y), value);
     	}else {
     		int realX = x + this.x;
     		int realY = y + this.y;
@@ -260,9 +630,9 @@ public class PixelFlowRegion {
     				neighbourFlows[Direction.LEFT.index][y] = value;
     			}else if(y < 0) {
     				neighbourFlows[Direction.UP.index][x] = value;
-    			}else if(x >= sites.length) {
+    			}else if(x >= sites.getWidth()) {
     				neighbourFlows[Direction.RIGHT.index][y] = value;
-    			}else if(y >= sites[0].length) {
+    			}else if(y >= sites.getHeight()) {
     				neighbourFlows[Direction.DOWN.index][x] = value;
     			}
     		}
@@ -271,86 +641,157 @@ public class PixelFlowRegion {
 
 	@POPSyncConc
 	public void finishFlowUpdate() {
-		this.sites = tempSites;
+		awaitFlows();
+		sites.swapFlows();
+		activity.wake(sites);
+	}
+
+    /**
+     * Finish a step computed by updateFlowsAndTemperatures: make the new flows current and
+     * update the temperatures of the sites which were not complete during the sweep
+     */
+	@POPSyncConc
+	public void finishFusedFlowUpdate() {
+		awaitFlows();
+		sites.swapFlows();
+		activity.wake(sites);
+
+		int height = sites.getHeight();
+
+		for (int x = 0; x < sites.getWidth(); x++) {
+			if (temperatureUpdated[x]) {
+				updateTemperatures(x, 0, 1, false);
+				updateTemperatures(x, height - 1, height, false);
+				temperatureUpdated[x] = false;
+			} else {
+				updateTemperatures(x, 0, height, false);
+			}
+		}
 	}
 
 	@POPSyncConc
     public void updateTemperatures() {
-        for (int x = 0; x < sites.length; x++) {
-            for (int y = 0; y < sites[0].length; y++) {
-                SiteType s = getSiteType(x, y);
-
-                // If site s is a source return by default the initial temperature of the system
-                // (because here we don't care with the temperature of a source site)
-                if (s instanceof SiteSource) {
-                    continue;
-                }
-
-                // Else the site is not a source, therefore is an obstacle and has a beta and a
-                // gamma value
-                SiteObstacle so = (SiteObstacle) s;
-
-                // First retrieve the flows in the 4 directions at the point
-                double f0 = sites[x][y].getFlows()[0];
-                double f1 = sites[x][y].getFlows()[1];
-                double f2 = sites[x][y].getFlows()[2];
-                double f3 = sites[x][y].getFlows()[3];
-
-                float factor = so.getEnergyLossFactor(); // 1.0 - gamma^2 - gamma * beta - beta^2
-                float energy = (float) (factor * deltaTimePerIteration * (f0 * f0 + f1 * f1 + f2 * f2 + f3 * f3)); // [J]
-                float deltaTemperature = (float) energy / so.getEnergyNeededToIncreaseByOneDegree();
-
-                sites[x][y].addTemperature(deltaTemperature);
+
+        for (int x = 0; x < sites.getWidth(); x++) {
+        	updateTemperatures(x, 0, sites.getHeight(), false);
+        }
+    }
+
+    /**
+     * Update the temperatures of the sites yStart to yEnd of the column x heated by the current
+     * or the next flows. The sites of the tiles which cannot have flows are skipped.
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param next if set, the flows of the next step, otherwise the current flows
+     */
+    private void updateTemperatures(int x, int yStart, int yEnd, boolean next) {
+        // The sites are updated by runs of sites of the same type
+        for (int run = runs.getRun(x, yStart); run < runs.getFirstRun(x + 1) && runs.getStart(run) < yEnd; run++) {
+            int type = runs.getType(run);
+
+            // The sources and the sites which need an infinite energy keep their temperature
+            if (!heatedTypes[type]) {
+                continue;
+            }
+
+            int runStart = Math.max(runs.getStart(run), yStart);
+            int runEnd = Math.min(runs.getEnd(run), yEnd);
+
+            // The next flows can also be received by the neighbours of the active tiles
+            for (int y = next ? activity.getNextAwakeRow(x, runStart) : activity.getNextActiveRow(x, runStart);
+                    y < runEnd; ) {
+                int end = Math.min(next ? activity.getAwakeRowsEnd(x, y) : activity.getActiveRowsEnd(x, y), runEnd);
+
+                updateTemperatures(x, y, end, (SiteObstacle) siteTypes[type], next);
+                y = next ? activity.getNextAwakeRow(x, end) : activity.getNextActiveRow(x, end);
             }
         }
+    }
+
+    /**
+     * Update the temperatures of the sites yStart to yEnd of the column x, which all have the
+     * given obstacle type
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param so
+     * @param next if set, the flows of the next step, otherwise the current flows
+     */
+    private void updateTemperatures(int x, int yStart, int yEnd, SiteObstacle so, boolean next) {
+    	float [] temperatures = sites.getTemperatures();
+    	double [][] flows = next ? sites.getNextFlows() : sites.getFlows();
+    	float [][] floatFlows = next ? sites.getNextFloatFlows() : sites.getFloatFlows();
+    	float factor = so.getEnergyLossFactor(); // 1.0 - gamma^2 - gamma * beta - beta^2
+    	float energyNeeded = so.getEnergyNeededToIncreaseByOneDegree();
+
+    	for (int y = yStart; y < yEnd; y++) {
+    		// First retrieve the flows in the 4 directions at the point
+    		int index = sites.index(x, y);
+    		double f0, f1, f2, f3;
+    		if (floatFlows != null) {
+    			f0 = floatFlows[0][index];
+    			f1 = floatFlows[1][index];
+    			f2 = floatFlows[2][index];
+    			f3 = floatFlows[3][index];
+    		} else {
+    			f0 = flows[0][index];
+    			f1 = flows[1][index];
+    			f2 = flows[2][index];
+    			f3 = flows[3][index];
+    		}
 
+    		float energy = (float) (factor * deltaTimePerIteration * (f0 * f0 + f1 * f1 + f2 * f2 + f3 * f3)); // [J]
+    		float deltaTemperature = (float) energy / energyNeeded;
+
+    		temperatures[index] += deltaTemperature;
+    	}
     }
-	@POPSyncConc
-    private SiteType getSiteType(int row, int col) {
-		return siteTypes[sites[row][col].getTypeIndex()];
-	}
 
-	@POPSyncConc
-	private static double[] multiply(double[][] matrix, double[] vector) {
-		double[] result = new double[matrix.length];
+    /**
+     * Returns whether the temperature of the sites of every type changes. The sources and the
+     * obstacles which need an infinite energy to get one degree warmer keep their temperature.
+     * @param siteTypes
+     * @return whether the temperature changes, indexed by type index
+     */
+    private static boolean[] getHeatedTypes(SiteType[] siteTypes) {
+    	boolean [] heated = new boolean[siteTypes.length];
+
+    	for (int i = 0; i < siteTypes.length; i++) {
+    		heated[i] = siteTypes[i] instanceof SiteObstacle
+    				&& ((SiteObstacle) siteTypes[i]).getEnergyNeededToIncreaseByOneDegree() != Float.MAX_VALUE;
+    	}
+
+    	return heated;
+    }
 
-		// Potential omp
-		for (int i = 0; i < result.length; i++) {
-			for (int j = 0; j < vector.length; j++) {
-				result[i] += matrix[i][j] * vector[j];
-			}
-		}
-		return result;
-	}
 		@POPSyncSeq
-    public double[][] getGlobalFlows(double elapsedTime) {
-        double [][] flows = new double[sites.length][sites[0].length];
+    public byte[] getGlobalFlows(double elapsedTime) {
+        double [] flows = new double[sites.getWidth() * sites.getHeight()];
 
-        for(int x = 0; x < flows.length; x++) {
-            for(int y = 0; y < flows[0].length; y++) {
-                flows[x][y] = getGlobalFlow(sites[x][y], elapsedTime);
+        for(int x = 0; x < sites.getWidth(); x++) {
+            for(int y = 0; y < sites.getHeight(); y++) {
+                flows[sites.index(x, y)] = getGlobalFlow(x, y, elapsedTime);
             }
         }
 
-        return flows;
+        return WireFormat.encodeValues(flows, singlePrecisionTransfers, null);
     }
 		@POPSyncSeq
     public double getGlobalFlowAtPosition(int row, int col, double elapsedTime) {
-        Site site = getSite(row, col);
-
-        return getGlobalFlow(site, elapsedTime);
+        return getGlobalFlow(col - x, row - y, elapsedTime);
     }
 
-    private double getGlobalFlow(Site site, double elapsedTime) {
-        SiteType s = siteTypes[site.getTypeIndex()];
+    private double getGlobalFlow(int x, int y, double elapsedTime) {
+        int typeIndex = sites.getTypeIndex(x, y);
 
-        if (s instanceof SiteSource) {
-            return ((SiteSource) s).getValue(elapsedTime);
+        if (querySourceValues.isSource(typeIndex)) {
+            return querySourceValues.getValues(elapsedTime)[typeIndex];
         }
 
         float globalFlowValue = 0.0f;
         for (int i = 0; i < 4; i++) {
-            globalFlowValue += site.getFlows()[i];
+            globalFlowValue += sites.getFlow(x, y, i);
         }
 
         return globalFlowValue;
@@ -362,7 +803,7 @@ public class PixelFlowRegion {
      */
 		@POPSyncSeq
     public int getWidth() {
-    	return sites.length;
+    	return sites.getWidth();
     }
 
     /**
@@ -371,7 +812,7 @@ public class PixelFlowRegion {
      */
 		@POPSyncSeq
     public int getHeight() {
-    	return sites[0].length;
+    	return sites.getHeight();
     }
 
     /**
@@ -394,14 +835,115 @@ public class PixelFlowRegion {
 
     /**
      * Set the types of all region types
-     * @param regionTypes
+     * @param regionTypes one byte per site, column by column
      */
 		@POPSyncSeq
-		public void setSiteTypes(int[][] regionTypes) {
-    	for(int x = 0; x < regionTypes.length; x++) {
-            for(int y = 0; y < regionTypes[0].length; y++) {
-            	sites[x][y].setTypeIndex(regionTypes[x][y]);
-            }
-    	}
+		public void setSiteTypes(final byte[] regionTypes) {
+			runBetweenSteps(new Runnable() {
+				@Override
+				public void run() {
+					System.arraycopy(regionTypes, 0, sites.getTypeIndices(), 0, regionTypes.length);
+					activity.reset(sites, siteTypes);
+					typesChanged = true;
+				}
+			});
+		}
+
+    /**
+     * Set the types of the given sites
+     * @param indices positions of the sites in the region, column by column
+     * @param typeIndices
+     */
+	@POPSyncConc
+	public void editSiteTypes(final int[] indices, final byte[] typeIndices) {
+		runBetweenSteps(new Runnable() {
+			@Override
+			public void run() {
+				byte [] types = sites.getTypeIndices();
+
+				for(int i = 0; i < indices.length; i++) {
+					types[indices[i]] = typeIndices[i];
+				}
+
+				activity.reset(sites, siteTypes);
+				typesChanged = true;
+			}
+		});
+	}
+
+    /**
+     * Returns the estimated cost of each column and of each row of this region
+     * @param typeCosts cost of a cell, indexed by type index
+     * @return the column costs followed by the row costs
+     */
+	@POPSyncSeq
+	public double[][] getCosts(double[] typeCosts) {
+		double [] colCosts = new double[sites.getWidth()];
+		double [] rowCosts = new double[sites.getHeight()];
+		byte [] typeIndices = sites.getTypeIndices();
+
+		for(int x = 0; x < colCosts.length; x++) {
+			int index = sites.index(x, 0);
+
+			for(int y = 0; y < rowCosts.length; y++, index++) {
+				double cost = typeCosts[typeIndices[index]];
+				colCosts[x] += cost;
+				rowCosts[y] += cost;
+			}
 		}
+
+		return new double[][] {colCosts, rowCosts};
+	}
+
+    /**
+     * Moves this region to a new position and size on the global grid. The cells of the new
+     * area have to be set with setSites, the previous cells can be read with getPreviousSites
+     * until finishMoveSites is called.
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @param globalCols
+     * @param globalRows
+     */
+	@POPSyncConc
+	public void moveSites(int x, int y, int width, int height, int globalCols, int globalRows) {
+		previousSites = sites;
+		previousX = this.x;
+		previousY = this.y;
+
+		createSites(x, y, width, height, globalCols, globalRows, false);
+	}
+
+    /**
+     * Returns a block of the cells this region had before it was moved, encoded by
+     * {@link WireFormat}. The flows always keep their full precision.
+     * @param col first column on the global grid
+     * @param row first row on the global grid
+     * @param width
+     * @param height
+     * @return
+     */
+	@POPSyncSeq
+	public byte[] getPreviousSites(int col, int row, int width, int height) {
+		return WireFormat.encodeBlock(previousSites, col - previousX, row - previousY, width, height, false);
+	}
+
+    /**
+     * Set the cells starting at the given position on the global grid
+     * @param block a block encoded by {@link WireFormat}
+     * @param col
+     * @param row
+     */
+	@POPSyncConc
+	public void setSites(byte[] block, int col, int row) {
+		WireFormat.decodeBlock(block, sites, col - x, row - y);
+	}
+
+	@POPSyncConc
+	public void finishMoveSites() {
+		previousSites = null;
+		activity.reset(sites, siteTypes);
+		typesChanged = true;
+	}
 }
@@ -0,0 +1,100 @@
+package controller;
+
+import java.util.Arrays;
+
+/**
+ * A batch of site type changes. The changes are collected, for example while the mouse is
+ * dragged over the grid, and applied at once by
+ * {@link IPixelFlowManager#applySiteTypeEdits(SiteTypeEdits)}, which sends every region
+ * only the changes of its own sites, in a single call. The changes are applied in the
+ * order they were made, so a later change of a site overrides an earlier one.
+ * @author beat
+ *
+ */
+public class SiteTypeEdits {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int [] rows = new int[INITIAL_CAPACITY];
+	private int [] cols = new int[INITIAL_CAPACITY];
+	private int [] typeIndices = new int[INITIAL_CAPACITY];
+	private int size = 0;
+
+	/**
+	 * Set the type of the site at the given position. Setting the same type on the same
+	 * site twice in a row is only recorded once.
+	 * @param row
+	 * @param col
+	 * @param typeIndex
+	 */
+	public void set(int row, int col, int typeIndex) {
+		if(size > 0 && rows[size - 1] == row && cols[size - 1] == col && typeIndices[size - 1] == typeIndex) {
+			return;
+		}
+
+		if(size == rows.length) {
+			rows = Arrays.copyOf(rows, size * 2);
+			cols = Arrays.copyOf(cols, size * 2);
+			typeIndices = Arrays.copyOf(typeIndices, size * 2);
+		}
+
+		rows[size] = row;
+		cols[size] = col;
+		typeIndices[size] = typeIndex;
+		size++;
+	}
+
+	/**
+	 * Set the type of all the sites of a rectangle
+	 * @param row first row
+	 * @param col first column
+	 * @param height number of rows
+	 * @param width number of columns
+	 * @param typeIndex
+	 */
+	public void fill(int row, int col, int height, int width, int typeIndex) {
+		for(int c = col; c < col + width; c++) {
+			for(int r = row; r < row + height; r++) {
+				set(r, c, typeIndex);
+			}
+		}
+	}
+
+	/**
+	 * Append all the changes of another batch, they override the changes of this one
+	 * @param edits
+	 */
+	public void addAll(SiteTypeEdits edits) {
+		for(int i = 0; i < edits.size(); i++) {
+			set(edits.getRow(i), edits.getCol(i), edits.getTypeIndex(i));
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Remove all changes, the memory is kept for the next batch
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	public int getRow(int i) {
+		return rows[i];
+	}
+
+	public int getCol(int i) {
+		return cols[i];
+	}
+
+	public int getTypeIndex(int i) {
+		return typeIndices[i];
+	}
+
+}
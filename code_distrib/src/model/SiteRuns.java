@@ -0,0 +1,115 @@
+package model;
+
+/**
+ * The runs of consecutive sites of the same type of every column of a {@link SiteGrid}, in
+ * the order of the sites. The simulation loops walk the runs instead of the sites, so the
+ * type of a site is looked up once per run and every run is computed by a loop over sites of
+ * a single type. The runs must be built again when the types of the sites change.
+ * @author beat
+ *
+ */
+public class SiteRuns {
+
+	private final int [] columnRuns;
+	private final int [] runStarts;
+	private final int [] runEnds;
+	private final byte [] runTypes;
+
+	/**
+	 * Builds the runs of the given grid
+	 * @param sites
+	 */
+	public SiteRuns(SiteGrid sites) {
+		int width = sites.getWidth();
+		int height = sites.getHeight();
+		byte [] typeIndices = sites.getTypeIndices();
+
+		columnRuns = new int[width + 1];
+
+		int count = 0;
+		for (int x = 0; x < width; x++) {
+			int index = sites.index(x, 0);
+
+			for (int y = 0; y < height; y++, index++) {
+				if (y == 0 || typeIndices[index] != typeIndices[index - 1]) {
+					count++;
+				}
+			}
+		}
+
+		runStarts = new int[count];
+		runEnds = new int[count];
+		runTypes = new byte[count];
+
+		int run = 0;
+		for (int x = 0; x < width; x++) {
+			int index = sites.index(x, 0);
+			columnRuns[x] = run;
+
+			for (int y = 0; y < height; y++, index++) {
+				if (y == 0 || typeIndices[index] != typeIndices[index - 1]) {
+					runStarts[run] = y;
+					runTypes[run] = typeIndices[index];
+					run++;
+				}
+				runEnds[run - 1] = y + 1;
+			}
+		}
+		columnRuns[width] = run;
+	}
+
+	/**
+	 * Returns the first run of the column x. The runs of the column end at the first run of
+	 * the column x + 1.
+	 * @param x
+	 * @return
+	 */
+	public int getFirstRun(int x) {
+		return columnRuns[x];
+	}
+
+	/**
+	 * Returns the run of the column x containing the row y, or the first run of the column
+	 * x + 1 if y is below the column
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int getRun(int x, int y) {
+		int run = columnRuns[x];
+
+		while (run < columnRuns[x + 1] && runEnds[run] <= y) {
+			run++;
+		}
+
+		return run;
+	}
+
+	/**
+	 * Returns the first row of the given run
+	 * @param run
+	 * @return
+	 */
+	public int getStart(int run) {
+		return runStarts[run];
+	}
+
+	/**
+	 * Returns the row following the last row of the given run
+	 * @param run
+	 * @return
+	 */
+	public int getEnd(int run) {
+		return runEnds[run];
+	}
+
+	/**
+	 * Returns the type index of the sites of the given run
+	 * @param run
+	 * @return
+	 */
+	public int getType(int run) {
+		return runTypes[run];
+	}
+
+}
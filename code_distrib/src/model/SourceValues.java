@@ -0,0 +1,63 @@
+package model;
+
+/**
+ * The values sent by the sources at a given time, one per site type. A source sends the same
+ * value from all its sites, so the sine is computed once per source type and step instead of
+ * once per site. The values are only computed again when the time changes.
+ *
+ * A table is not thread safe: the values must be requested before the sites are computed by
+ * several threads, and the values of another time must be requested from another table.
+ * @author beat
+ *
+ */
+public class SourceValues {
+
+	private final SiteType [] siteTypes;
+	private final boolean [] sources;
+	private final float [] values;
+	private double elapsedTime = Double.NaN;
+
+	/**
+	 * Creates the table of the given site types
+	 * @param siteTypes the site types, indexed by type index
+	 */
+	public SourceValues(SiteType[] siteTypes) {
+		this.siteTypes = siteTypes;
+		this.sources = new boolean[siteTypes.length];
+		this.values = new float[siteTypes.length];
+
+		for (int i = 0; i < siteTypes.length; i++) {
+			sources[i] = siteTypes[i] instanceof SiteSource;
+		}
+	}
+
+	/**
+	 * Returns whether the type of the given index is a source
+	 * @param typeIndex
+	 * @return
+	 */
+	public boolean isSource(int typeIndex) {
+		return sources[typeIndex];
+	}
+
+	/**
+	 * Returns the values of the sources at the given time, indexed by type index. The values
+	 * of the other types are 0. The array is reused and must not be modified.
+	 * @param elapsedTime in seconds
+	 * @return
+	 */
+	public float[] getValues(double elapsedTime) {
+		if (elapsedTime != this.elapsedTime) {
+			for (int i = 0; i < siteTypes.length; i++) {
+				if (sources[i]) {
+					values[i] = ((SiteSource) siteTypes[i]).getValue(elapsedTime);
+				}
+			}
+
+			this.elapsedTime = elapsedTime;
+		}
+
+		return values;
+	}
+
+}
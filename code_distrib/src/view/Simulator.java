@@ -1,7 +1,6 @@
 package view;
 
 import java.awt.BorderLayout;
-import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.DisplayMode;
 import java.awt.GraphicsDevice;
@@ -17,9 +16,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
 import java.util.concurrent.TimeUnit;
 
 import javax.swing.BorderFactory;
@@ -44,10 +40,11 @@ import javax.swing.event.ChangeListener;
 
 import controller.IPixelFlowManager;
 import controller.PixelFlowManager;
+import model.DefaultSiteTypes;
 import model.Site;
-import model.SiteObstacle;
-import model.SiteSource;
 import model.SiteType;
+import utilities.AllocationCounter;
+import utilities.GridFile;
 
 import ch.icosys.popjava.core.system.POPSystem;
 
@@ -82,7 +79,8 @@ public class Simulator extends JFrame {
 	private final Dimension SCREEN_DIM;
 	private final static int PADDING = 4, COMMAND_PANEL_HEIGHT = 27;
 	private final static int MIN_FPS = 1, MAX_FPS = 200;
-	private int fps = 200, maxSimulTime = 30;
+	private final static int MAX_STEPS_PER_FRAME = 1000;
+	private int fps = 200, maxSimulTime = 30, stepsPerFrame = 1;
 	private final static String SEP = ",", SEP2 = "_";
 
 	private IPixelFlowManager pixelFlowManager;
@@ -138,64 +136,10 @@ public class Simulator extends JFrame {
 	}
 
 	private void createPixelFlowManager() {
-		List<SiteType> siteTypes = new ArrayList<>();
-
-		// TODO Here are defined the various types of sites of the system.
-
-		/*
-		 * *****************************************************************************
-		 * ************
-		 */
-		/*
-		 * For a given site type, beta^2 + beta * gamma + gamma^2 <= 1 (and < 1 <=>
-		 * calorific loss)
-		 */
-		/*
-		 * *****************************************************************************
-		 * ************
-		 */
-
-		// Site of type "air": all incoming energy is spread <=> beta = 1.0 and gamma =
-		// 0.0
-		SiteType air = new SiteObstacle("Air", Color.WHITE, 1.0f, 0.0f, Float.MAX_VALUE);
-
-		// Site of type "wall": all incoming energy is reflected <=> beta = 1.0 and
-		// gamma = 0.0
-		SiteType wall = new SiteObstacle("Wall", Color.DARK_GRAY, 0.0f, 1.0f, Float.MAX_VALUE);
-
-		// Site of type "water": a part of the incoming energy is lost in heat: beta^2 +
-		// beta * gamma + gamma^2 < 1
-		SiteType water = new SiteObstacle("Water", Color.BLUE, 0.93f, 0.0f, 4.2f);
-
-		// Site of type "source": yields the energy
-		SiteType source = new SiteSource("Source", Color.MAGENTA, (long) 24.5, 40);
-
-		/*
-		 * *****************************************************************************
-		 * ***********************
-		 */
-		/*
-		 * A sinusoidal source (like micro-ondes) have a frequency and an amplitude:
-		 * freq = 2.45GHz = 2.45E9Hz
-		 */
-		/*
-		 * Micro-ondes have a frequency of 2.45 GHz = 2.45E9 Hz, but for simulation
-		 * reasons that you must
-		 */
-		/*
-		 * understand and explain, have been set to 24.5Hz. The amplitude has been
-		 * trivially set to 40.
-		 */
-		/*
-		 * *****************************************************************************
-		 * ***********************
-		 */
-
-		siteTypes.add(air);
-		siteTypes.add(wall);
-		siteTypes.add(water);
-		siteTypes.add(source);
-		this.pixelFlowManager = new PixelFlowManager(/* 154, 300 */215, 418, siteTypes.toArray(new SiteType[0]), air, 21.0f);
+		// The various types of sites of the system are defined in DefaultSiteTypes
+		SiteType [] siteTypes = DefaultSiteTypes.create();
+
+		this.pixelFlowManager = new PixelFlowManager(/* 154, 300 */215, 418, siteTypes, siteTypes[DefaultSiteTypes.AIR], DefaultSiteTypes.INITIAL_TEMPERATURE);
 				//new PixelFlowManager(/* 154, 300 */215, 418, siteTypes.toArray(new SiteType[0]), air, 21.0f);
 	}
 
@@ -348,6 +292,16 @@ public class Simulator extends JFrame {
 		fpsLabel = new JLabel(fps + " FPS");
 		fpsLabel.setToolTipText("Frames per second");
 		commandPanel.add(fpsLabel);
+		commandPanel.add(new JLabel("Steps/frame:"));
+		JSpinner stepsPerFrameSpinner = new JSpinner(new SpinnerNumberModel(stepsPerFrame, 1, MAX_STEPS_PER_FRAME, 1));
+		stepsPerFrameSpinner.setToolTipText("Set the number of simulation steps computed between two frames");
+		stepsPerFrameSpinner.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				stepsPerFrame = (Integer) ((JSpinner) e.getSource()).getValue();
+			}
+		});
+		commandPanel.add(stepsPerFrameSpinner);
 		JButton resetFlowButton = new JButton("Reset Flow");
 		resetFlowButton.setToolTipText("Reset the flow spreading over the grid");
 		resetFlowButton.addActionListener(new ActionListener() {
@@ -458,26 +412,13 @@ public class Simulator extends JFrame {
 	}
 
 	private void loadGridConfigFromFile(File file) {
-		try (Scanner scanner = new Scanner(file)) {
-			String[] cellularAutomatonDim = scanner.nextLine().split(SEP);
-			int rows = Integer.parseInt(cellularAutomatonDim[0]);
-			int cols = Integer.parseInt(cellularAutomatonDim[1]);
+		try {
+			GridFile gridFile = GridFile.read(file);
+			int rows = gridFile.getRows();
+			int cols = gridFile.getCols();
 			pixelFlowManager.reinitializeSites(rows, cols, false);
-			int row = 0;
-
-			int [][] siteTypes = new int[cols][rows];
-
-			while (scanner.hasNextLine()) {
-				String[] rowValues = scanner.nextLine().split(SEP);
-				for (int col = 0; col < rowValues.length; col++) {
-					int typeIndex = Integer.parseInt(rowValues[col]);
-					//pixelFlowManager.setSiteType(row, col, typeIndex );
-					siteTypes[col][row] = typeIndex;
-				}
-				row++;
-			}
 
-			pixelFlowManager.setSiteTypes(siteTypes);
+			pixelFlowManager.setSiteTypes(gridFile.getSiteTypes());
 			if (gridPanel != null) {
 				gridPanel.update();
 				gridWidthSpinner.setValue(cols);
@@ -502,6 +443,7 @@ public class Simulator extends JFrame {
 	public void startSimulation() {
 		isRunning = true;
 		runButton.setText("Stop");
+		gridPanel.setLive(true);
 		simulatorWorker = new SimulatorWorker();
 		simulationThread = new Thread(simulatorWorker);
 		simulationThread.start();
@@ -541,17 +483,30 @@ public class Simulator extends JFrame {
 
 	private class SimulatorWorker implements Runnable {
 
+		private final AllocationCounter allocationCounter = new AllocationCounter();
+
 		@Override
 		public void run() {
 			while (isRunning) {
 				try {
 					long t0 = System.currentTimeMillis();
+					allocationCounter.start();
 
-					pixelFlowManager.step();
+					int steps = stepsPerFrame;
+					pixelFlowManager.step(steps);
 
+					allocationCounter.stop();
 					final long dt = System.currentTimeMillis() - t0;
 
-					System.out.println("Calculated step in "+(dt)+" ms");
+					System.out.println("Calculated "+steps+" step(s) in "+(dt)+" ms ("+allocationCounter.getAllocatedBytes()+" bytes allocated by the simulation thread, "
+							+allocationCounter.getCollections()+" GC)");
+
+					// The frame is gathered here, the event thread only paints the latest one
+					// and never waits for the steps
+					if (gridPanel.getViewMode() != ViewMode.Blank) {
+						gridPanel.publishFrame(pixelFlowManager.getSnapshot());
+					}
+					final double elapsedTime = pixelFlowManager.getElapsedTime();
 
 					final long sleepTime = Math.max((long) (1000.0 / fps) - dt, 0);
 
@@ -566,8 +521,8 @@ public class Simulator extends JFrame {
 							}
 
 							simulationTimeLabel
-									.setText("Simulation duration: " + getFormattedDuration(pixelFlowManager.getElapsedTime()));
-							if (simulationMaxTimeSpinner.isEnabled() && pixelFlowManager.getElapsedTime() >= maxSimulTime) {
+									.setText("Simulation duration: " + getFormattedDuration(elapsedTime));
+							if (simulationMaxTimeSpinner.isEnabled() && elapsedTime >= maxSimulTime) {
 								stopSimulation();
 							}
 						}
@@ -577,6 +532,18 @@ public class Simulator extends JFrame {
 				} catch (InterruptedException e) {
 				}
 			}
+
+			SwingUtilities.invokeLater(new Runnable() {
+
+				@Override
+				public void run() {
+					// Unless the simulation was restarted meanwhile
+					if (!isRunning) {
+						gridPanel.setLive(false);
+						gridPanel.repaint();
+					}
+				}
+			});
 		}
 
 	}
@@ -0,0 +1,101 @@
+package controller;
+
+/**
+ * Chooses how the grid is tiled into one region per compute node. All P x Q tilings
+ * with P * Q nodes are considered, including strips (1 x n and n x 1). The chosen tiling
+ * is the one whose worst region exchanges the fewest boundary cells with its neighbours
+ * per cell it computes, ties are broken by the total boundary length.
+ * @author beat
+ *
+ */
+public class DecompositionPlanner {
+
+	private final ComputeNode [] nodes;
+
+	public DecompositionPlanner(ComputeNode[] nodes) {
+		if(nodes.length == 0) {
+			throw new IllegalArgumentException("At least one compute node is needed");
+		}
+
+		this.nodes = nodes;
+	}
+
+	/**
+	 * Returns the best tiling for the given grid size, already split
+	 * @param rows
+	 * @param cols
+	 * @return
+	 */
+	public Decomposition plan(int rows, int cols) {
+		Decomposition best = null;
+		double bestRatio = Double.MAX_VALUE;
+		long bestBoundary = Long.MAX_VALUE;
+
+		for(int regionCols = 1; regionCols <= nodes.length; regionCols++) {
+			if(nodes.length % regionCols != 0) {
+				continue;
+			}
+
+			int regionRows = nodes.length / regionCols;
+
+			if(regionCols > cols || regionRows > rows) {
+				continue;
+			}
+
+			Decomposition decomposition = new Decomposition(regionCols, regionRows, nodes);
+			decomposition.split(rows, cols);
+
+			double ratio = getBoundaryRatio(decomposition);
+			long boundary = (long) (regionCols - 1) * rows + (long) (regionRows - 1) * cols;
+
+			if(ratio < bestRatio || (ratio == bestRatio && boundary < bestBoundary)) {
+				best = decomposition;
+				bestRatio = ratio;
+				bestBoundary = boundary;
+			}
+		}
+
+		if(best == null) {
+			throw new IllegalArgumentException("A " + rows + " x " + cols + " grid is too small for "
+					+ nodes.length + " regions");
+		}
+
+		return best;
+	}
+
+	/**
+	 * Returns the highest number of boundary cells per computed cell of all regions.
+	 * A boundary cell is a cell whose flows are sent to a neighbour region.
+	 * @param decomposition
+	 * @return
+	 */
+	static double getBoundaryRatio(Decomposition decomposition) {
+		double worst = 0;
+
+		for(int x = 0; x < decomposition.getRegionCols(); x++) {
+			for(int y = 0; y < decomposition.getRegionRows(); y++) {
+				int width = decomposition.getWidth(x);
+				int height = decomposition.getHeight(y);
+				long boundary = 0;
+
+				if(x > 0) {
+					boundary += height;
+				}
+				if(x + 1 < decomposition.getRegionCols()) {
+					boundary += height;
+				}
+				if(y > 0) {
+					boundary += width;
+				}
+				if(y + 1 < decomposition.getRegionRows()) {
+					boundary += width;
+				}
+
+				worst = Math.max(worst, (double) boundary / Math.max(1L, (long) width * height));
+			}
+		}
+
+		return worst;
+	}
+
+}
@@ -4,6 +4,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import controller.PixelFlowRegion.Direction;
+import model.GridSnapshot;
 import model.Site;
 import model.SiteSource;
 import model.SiteType;
@@ -23,12 +24,44 @@ public class PixelFlowManager implements IPixelFlowManager{
     private final double maxFlow;
     private final float initialTemperature;
     private long iterations = 0;
+    private boolean fusedStep = true;
+    private boolean singlePrecisionFlows = false;
+    private boolean vectorKernel = true;
+
+    private final static int DEFAULT_REBALANCE_EDITS = 1000;
+
+    private final CellCostModel costModel;
+    private boolean loadBalancing = true;
+    private int rebalanceEdits = DEFAULT_REBALANCE_EDITS;
+    private int editsSinceBalance = 0;
+
+    // Site type changes made while steps are computed, for example by the event thread while
+    // the simulation thread computes. They are only sent to the regions once the steps are
+    // done, so that a step never sees the types or the bounds of the regions change.
+    // A whole grid of site types set meanwhile is queued too, the queued edits made after it
+    // are applied on top of it. stepping, queuedSiteTypes and queuedEdits are guarded by editLock.
+    private final Object editLock = new Object();
+    private final SiteTypeEdits queuedEdits = new SiteTypeEdits();
+    private int [][] queuedSiteTypes;
+    private boolean stepping = false;
+
+    // Incremented by every change of the site types. The site types of the whole grid are
+    // only gathered from the regions again when this version differs from the cached one.
+    private volatile long siteTypeVersion = 0;
+    private long cachedSiteTypeVersion = -1;
+    private SiteType [][] cachedSiteTypes;
+
+    // State of all sites, gathered again after a step or a change of the site types
+    private GridSnapshot snapshot;
+    private long snapshotSiteTypeVersion = -1;
     
-    private final static int DIV_COL = 1;
-    private final static int DIV_ROW = 1;
-    
+    private final static ComputeNode [] DEFAULT_NODES = {
+    		new ComputeNode("localhost", 1)
+    };
+
     private int rows, cols;
-    
+
+    private final Decomposition decomposition;
     private final PixelFlowRegion [][] regions;
     
     public PixelFlowManager(
@@ -37,19 +70,36 @@ public class PixelFlowManager implements IPixelFlowManager{
             SiteType[] siteTypesArray,
             SiteType defaultSiteType,
             float initialTemperature){
+        this(rows, cols, siteTypesArray, defaultSiteType, initialTemperature, DEFAULT_NODES);
+    }
+
+    /**
+     * Creates a simulation with one region per node. The tiling of the grid is
+     * chosen by the {@link DecompositionPlanner}.
+     */
+    public PixelFlowManager(
+            int rows,
+            int cols,
+            SiteType[] siteTypesArray,
+            SiteType defaultSiteType,
+            float initialTemperature,
+            ComputeNode[] nodes){
         this.siteTypes = Arrays.asList(siteTypesArray);
         this.defaultSiteTypeIndex = siteTypes.indexOf(defaultSiteType);
         this.initialTemperature = initialTemperature;
         this.deltaTimePerIteration = computeDeltaTimePerIteration();
         this.maxFlow = computeMaxFlow();
+        this.costModel = new CellCostModel(siteTypesArray);
         
     	this.rows = rows;
     	this.cols = cols;
 
-    	regions = new PixelFlowRegion[DIV_COL][DIV_ROW];
+    	decomposition = new DecompositionPlanner(nodes).plan(rows, cols);
+    	regions = new PixelFlowRegion[decomposition.getRegionCols()][decomposition.getRegionRows()];
+
         for(int x = 0; x < regions.length; x++) {
         	for(int y = 0; y < regions[x].length; y++) {
-        		regions[x][y] = new PixelFlowRegion(deltaTimePerIteration, siteTypes.toArray(new SiteType[0]), "localhost");
+        		regions[x][y] = new PixelFlowRegion(deltaTimePerIteration, siteTypes.toArray(new SiteType[0]), decomposition.getNode(x, y).getHost());
         	}
         }
         
@@ -107,37 +157,282 @@ public class PixelFlowManager implements IPixelFlowManager{
 	}
     
     private void initRegions(int rows, int cols, boolean copy) {
-        
-    	int rowChunk = rows / DIV_ROW;
-		int colChunk = cols / DIV_COL;
+		int [] previousColBounds = decomposition.getColBounds();
+		int [] previousRowBounds = decomposition.getRowBounds();
+		boolean resized = previousColBounds[previousColBounds.length - 1] != cols
+				|| previousRowBounds[previousRowBounds.length - 1] != rows;
+
 		this.rows = rows;
 		this.cols = cols;
-		
+
+		if(!copy) {
+			decomposition.split(rows, cols);
+
+			for(int x = 0; x < regions.length; x++) {
+	        	for(int y = 0; y < regions[x].length; y++) {
+	        		regions[x][y].createSites(decomposition.getColStart(x), decomposition.getRowStart(y),
+	        				decomposition.getWidth(x), decomposition.getHeight(y), cols, rows, false);
+	        	}
+			}
+		}else {
+			// Keep the current cuts if the size did not change, the cells are moved to their new region
+			if(resized) {
+				decomposition.split(rows, cols);
+			}
+
+			moveRegions(previousColBounds, previousRowBounds);
+		}
+    }
+
+    /**
+     * Moves the regions to the current bounds of the decomposition. All cells which are
+     * on the grid before and after the move keep their state.
+     * @param previousColBounds the column bounds the regions currently have
+     * @param previousRowBounds the row bounds the regions currently have
+     */
+    private void moveRegions(int[] previousColBounds, int[] previousRowBounds) {
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		regions[x][y].moveSites(decomposition.getColStart(x), decomposition.getRowStart(y),
+        				decomposition.getWidth(x), decomposition.getHeight(y), cols, rows);
+        	}
+		}
+
 		for(int x = 0; x < regions.length; x++) {
         	for(int y = 0; y < regions[x].length; y++) {
-        		int width = colChunk;
-        		
-        		if(x == regions.length - 1) {
-        			width = cols - x * colChunk;
+        		int colStart = decomposition.getColStart(x);
+        		int colEnd = colStart + decomposition.getWidth(x);
+        		int rowStart = decomposition.getRowStart(y);
+        		int rowEnd = rowStart + decomposition.getHeight(y);
+
+        		for(int previousX = 0; previousX < previousColBounds.length - 1; previousX++) {
+        			for(int previousY = 0; previousY < previousRowBounds.length - 1; previousY++) {
+        				int blockX = Math.max(colStart, previousColBounds[previousX]);
+        				int blockY = Math.max(rowStart, previousRowBounds[previousY]);
+        				int blockWidth = Math.min(colEnd, previousColBounds[previousX + 1]) - blockX;
+        				int blockHeight = Math.min(rowEnd, previousRowBounds[previousY + 1]) - blockY;
+
+        				if(blockWidth > 0 && blockHeight > 0) {
+        					regions[x][y].setSites(regions[previousX][previousY].getPreviousSites(blockX, blockY, blockWidth, blockHeight),
+        							blockX, blockY);
+        				}
+        			}
         		}
-        		
-        		int height = rowChunk;
-        		
-        		if(y == regions[x].length - 1) {
-        			height = rows - y * rowChunk;
+        	}
+		}
+
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		regions[x][y].finishMoveSites();
+        	}
+		}
+    }
+
+    /**
+     * Moves the cuts between the regions so that every region gets the same estimated
+     * work per core, according to the current site types and the cost model. The state
+     * of all cells is kept.
+     */
+    public void rebalance() {
+    	editsSinceBalance = 0;
+
+    	double [] colCosts = new double[cols];
+    	double [] rowCosts = new double[rows];
+
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		double [][] costs = regions[x][y].getCosts(costModel.getCosts());
+        		int colStart = decomposition.getColStart(x);
+        		int rowStart = decomposition.getRowStart(y);
+
+        		for(int i = 0; i < costs[0].length; i++) {
+        			colCosts[colStart + i] += costs[0][i];
+        		}
+        		for(int i = 0; i < costs[1].length; i++) {
+        			rowCosts[rowStart + i] += costs[1][i];
         		}
-        		
-        		regions[x][y].createSites(x * colChunk, y * rowChunk, width, height, cols, rows, copy);
         	}
 		}
+
+		int [] previousColBounds = decomposition.getColBounds();
+		int [] previousRowBounds = decomposition.getRowBounds();
+
+		decomposition.balance(colCosts, rowCosts);
+
+		if(!decomposition.hasBounds(previousColBounds, previousRowBounds)) {
+			moveRegions(previousColBounds, previousRowBounds);
+		}
+    }
+
+    /**
+     * If set, the regions are rebalanced whenever all site types are set and after
+     * every getRebalanceEdits() single site type changes
+     * @param loadBalancing
+     */
+    public void setLoadBalancing(boolean loadBalancing) {
+    	this.loadBalancing = loadBalancing;
+    }
+
+    public boolean isLoadBalancing() {
+    	return loadBalancing;
+    }
+
+    /**
+     * Number of single site type changes after which the regions are rebalanced
+     * @param rebalanceEdits
+     */
+    public void setRebalanceEdits(int rebalanceEdits) {
+    	this.rebalanceEdits = rebalanceEdits;
+    }
+
+    public int getRebalanceEdits() {
+    	return rebalanceEdits;
+    }
+
+    public CellCostModel getCostModel() {
+    	return costModel;
+    }
+
+    /**
+     * Returns the tiling of the grid into regions
+     * @return
+     */
+    public Decomposition getDecomposition() {
+    	return decomposition;
     }
     
     public void step() {
-		updateFlows();
-		updateTemperatures();
+    	step(1);
+	}
+
+	/**
+	 * Mark the start of steps, the site type changes are queued until {@link #finishSteps()}
+	 */
+	private void startSteps() {
+		synchronized (editLock) {
+			stepping = true;
+		}
+	}
+
+	/**
+	 * Mark the end of steps and send the site type changes queued meanwhile to the regions
+	 */
+	private void finishSteps() {
+		synchronized (editLock) {
+			stepping = false;
+
+			if(queuedSiteTypes != null) {
+				sendSiteTypes(queuedSiteTypes);
+				queuedSiteTypes = null;
+			}
+
+			if(!queuedEdits.isEmpty()) {
+				sendSiteTypeEdits(queuedEdits);
+				queuedEdits.clear();
+			}
+		}
+	}
+
+	@Override
+	public void step(int steps) {
+		startSteps();
+		try {
+			for(int i = 0; i < steps; i++) {
+				computeStep();
+			}
+		} finally {
+			finishSteps();
+		}
+	}
+
+	private void computeStep() {
+    	if(loadBalancing && editsSinceBalance >= rebalanceEdits) {
+    		rebalance();
+    	}
+
+    	if(fusedStep) {
+    		updateFlowsAndTemperatures();
+    	}else {
+			updateFlows();
+			updateTemperatures();
+    	}
 		iterations++;
 	}
 
+	@Override
+	public void setFusedStep(boolean fusedStep) {
+		this.fusedStep = fusedStep;
+	}
+	
+	@Override
+	public boolean isFusedStep() {
+		return fusedStep;
+	}
+
+	/**
+	 * If set, the regions store the flows as floats instead of doubles. A step reads and
+	 * writes half as much memory, the flows are rounded to floats after every step.
+	 * @param singlePrecisionFlows
+	 */
+	public void setSinglePrecisionFlows(boolean singlePrecisionFlows) {
+		this.singlePrecisionFlows = singlePrecisionFlows;
+		snapshot = null;
+
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		regions[x][y].setSinglePrecisionFlows(singlePrecisionFlows);
+        	}
+		}
+	}
+
+	public boolean isSinglePrecisionFlows() {
+		return singlePrecisionFlows;
+	}
+
+	/**
+	 * If set, the regions compute several sites at once with the Vector API, if the module
+	 * jdk.incubator.vector is available. Otherwise, or if not set, the sites are computed
+	 * one after the other. The results are the same.
+	 * @param vectorKernel
+	 */
+	public void setVectorKernel(boolean vectorKernel) {
+		this.vectorKernel = vectorKernel;
+
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		regions[x][y].setVectorKernel(vectorKernel);
+        	}
+		}
+	}
+
+	/**
+	 * Returns the number of sites the regions compute at once, 1 without the vector kernel
+	 * @return
+	 */
+	public int getVectorLanes() {
+		return vectorKernel ? Math.max(PixelFlowRegion.getVectorLanes(), 1) : 1;
+	}
+
+	private void updateFlowsAndTemperatures() {
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		regions[x][y].prepareFlowUpdate();
+        	}
+		}
+		
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		regions[x][y].updateFlowsAndTemperatures(getElapsedTime());
+        	}
+		}
+		
+		for(int x = 0; x < regions.length; x++) {
+        	for(int y = 0; y < regions[x].length; y++) {
+        		regions[x][y].finishFusedFlowUpdate();
+        	}
+		}
+	}
+
 	private void updateFlows() {
 		for(int x = 0; x < regions.length; x++) {
         	for(int y = 0; y < regions[x].length; y++) {
@@ -178,6 +473,7 @@ public class PixelFlowManager implements IPixelFlowManager{
 
 	@Override
 	public void reinitializeSites(int rows, int cols, boolean copy) {
+		siteTypeVersion++;
 		this.rows = rows;
 		this.cols = cols;
 		
@@ -188,43 +484,89 @@ public class PixelFlowManager implements IPixelFlowManager{
         		regions[x][y].initSites(defaultSiteTypeIndex, initialTemperature, copy);
         	}
 		}
+
+		if(loadBalancing) {
+			rebalance();
+		}
 	}
 	
 	private PixelFlowRegion getRegionForPosition(int row, int col) {
-		int rowChunk = rows / DIV_ROW;
-		int colChunk = cols / DIV_COL;
+		return regions[decomposition.getRegionCol(col)][decomposition.getRegionRow(row)];
+	}
 
-		int x = Math.min(col / colChunk, regions.length - 1);
-		int y = Math.min(row / rowChunk, regions[0].length - 1);
-		
-		return regions[x][y];
+	@Override
+	public GridSnapshot getSnapshot() {
+		if(snapshot == null || snapshot.getStep() != iterations || snapshotSiteTypeVersion != siteTypeVersion) {
+			long version = siteTypeVersion;
+			GridSnapshot snapshot = new GridSnapshot(rows, cols, iterations, getElapsedTime(), siteTypes);
+
+			for(int x = 0; x < regions.length; x++) {
+				for(int y = 0; y < regions[x].length; y++) {
+					regions[x][y].copyTo(snapshot);
+				}
+			}
+			snapshot.computeGlobalFlows();
+
+			this.snapshot = snapshot;
+			snapshotSiteTypeVersion = version;
+		}
+
+		return snapshot;
 	}
 
 	@Override
 	public float getTemperatureAtPosition(int row, int col) {
-		return getRegionForPosition(row, col).getSite(row, col).getTemperature();
+		return getSnapshot().getTemperature(row, col);
 	}
 
 	@Override
 	public SiteType getSiteType(int row, int col) {
-		return siteTypes.get(getRegionForPosition(row, col).getSite(row, col).getTypeIndex());
+		return getAllSiteTypes()[col][row];
+	}
+
+	@Override
+	public int getSiteTypeIndex(int row, int col) {
+		return getRegionForPosition(row, col).getSite(row, col).getTypeIndex();
 	}
 	
+    /**
+     * Returns the site types of the whole grid. The array is cached until the site types
+     * change, it is shared by all callers and must not be modified.
+     */
     @Override
     public SiteType[][] getAllSiteTypes() {
+        if(cachedSiteTypes == null || cachedSiteTypeVersion != siteTypeVersion) {
+            // The version is read first, a change made during the gather is seen next time
+            long version = siteTypeVersion;
+
+            cachedSiteTypes = gatherSiteTypes();
+            cachedSiteTypeVersion = version;
+        }
+
+        return cachedSiteTypes;
+    }
+
+    /**
+     * Returns the version of the site types, which is incremented by every change
+     * @return
+     */
+    public long getSiteTypeVersion() {
+        return siteTypeVersion;
+    }
+
+    private SiteType[][] gatherSiteTypes() {
         
         SiteType [][] siteTypes = new SiteType[cols][rows];
-        int rowChunk = rows / DIV_ROW;
-        int colChunk = cols / DIV_COL;
 
-        
         for(int x = 0; x < regions.length; x++) {
             for(int y = 0; y < regions[x].length; y++) {
                 int [][] indexes = regions[x][y].getSiteTypes();
-                
+                int xStart = decomposition.getColStart(x);
+                int yStart = decomposition.getRowStart(y);
+
                 for(int tempX = 0; tempX < indexes.length; tempX++) {
-                    for(int tempY = 0; tempY < indexes[0].length; tempY++) {
-                        siteTypes[x * colChunk + tempX][y * rowChunk + tempY] = this.siteTypes.get(indexes[tempX][tempY]);
+                    for(int tempY = 0; tempY < indexes[tempX].length; tempY++) {
+                        siteTypes[xStart + tempX][yStart + tempY] = this.siteTypes.get(indexes[tempX][tempY]);
                     }
                 }
             }
@@ -235,7 +577,9 @@ public class PixelFlowManager implements IPixelFlowManager{
 
 	@Override
 	public void setSiteType(int row, int col, int typeIndex) {
-		getRegionForPosition(row, col).setSiteType(col, row, typeIndex);
+		SiteTypeEdits edits = new SiteTypeEdits();
+		edits.set(row, col, typeIndex);
+		applySiteTypeEdits(edits);
 	}
 	
 	@Override
@@ -255,39 +599,22 @@ public class PixelFlowManager implements IPixelFlowManager{
 
 	@Override
 	public double getGlobalFlowAtPosition(int row, int col) {
-		Site site = getRegionForPosition(row, col).getSite(row, col);
-		
-		SiteType s = siteTypes.get(site.getTypeIndex());
-		
-		if (s instanceof SiteSource) {
-			return ((SiteSource) s).getValue(getElapsedTime());
-		}
-		
-		float globalFlowValue = 0.0f;
-		for (int i = 0; i < 4; i++) {
-			globalFlowValue += site.getFlows()[i];
-		}
-		
-		return globalFlowValue;
+		return getSnapshot().getGlobalFlow(row, col);
 	}
 	
 	@Override
     public double[][] getAllFlows() {
         double [][] globalFlows = new double[cols][rows];
-        
-        int rowChunk = rows / DIV_ROW;
-        int colChunk = cols / DIV_COL;
-        
+
         for(int x = 0; x < regions.length; x++) {
             for(int y = 0; y < regions[x].length; y++) {
                 double [][] flows = regions[x][y].getGlobalFlows(getElapsedTime());
-                
+                int xStart = decomposition.getColStart(x);
+                int yStart = decomposition.getRowStart(y);
+
                 for(int tempX = 0; tempX < flows.length; tempX++) {
-                    for(int tempY = 0; tempY < flows[0].length; tempY++) {
-                        globalFlows[x * colChunk + tempX][y * rowChunk + tempY] = flows[tempX][tempY];
-                    }
+                    System.arraycopy(flows[tempX], 0, globalFlows[xStart + tempX], yStart, flows[tempX].length);
                 }
-                
             }
         }
         
@@ -296,28 +623,47 @@ public class PixelFlowManager implements IPixelFlowManager{
 	
     @Override
     public double getFlowAtPosition(int row, int col, int flow) {
-        Site site = getRegionForPosition(row, col).getSite(row, col);
-        
-        SiteType s = siteTypes.get(site.getTypeIndex());
-        
-        if (s instanceof SiteSource) {
-            return ((SiteSource) s).getValue(getElapsedTime());
-        }
-        
-        return site.getFlows()[3];
+        return getSnapshot().getSiteFlow(row, col, flow);
     }
 
 	@Override
 	public void setNextSiteTypeIndex(int row, int col) {
-		int currentSiteTypeIndex = getRegionForPosition(row, col).getSite(row, col).getTypeIndex();
-		int nextSiteTypeIndex = (currentSiteTypeIndex + 1) % siteTypes.size();
-		getRegionForPosition(row, col).setSiteType(col, row, nextSiteTypeIndex);
+		int nextSiteTypeIndex = (getSiteTypeIndex(row, col) + 1) % siteTypes.size();
+		setSiteType(row, col, nextSiteTypeIndex);
 	}
 
 	@Override
 	public void setSameSiteTypeIndexAsIn(int row, int col, int lastR, int lastC) {
-		int lastSiteTypeIndex = getRegionForPosition(lastR, lastC).getSite(lastR, lastC).getTypeIndex();
-		getRegionForPosition(row, col).setSiteType(col, row, lastSiteTypeIndex);
+		setSiteType(row, col, getSiteTypeIndex(lastR, lastC));
+	}
+
+	@Override
+	public void applySiteTypeEdits(SiteTypeEdits edits) {
+		synchronized (editLock) {
+			if(stepping) {
+				// The regions and their bounds may change until the steps are done
+				queuedEdits.addAll(edits);
+			} else {
+				sendSiteTypeEdits(edits);
+			}
+		}
+	}
+
+	/**
+	 * Send the site type changes to the regions, the caller must hold editLock and no step
+	 * may be running
+	 * @param edits
+	 */
+	private void sendSiteTypeEdits(SiteTypeEdits edits) {
+		for(int i = 0; i < edits.size(); i++) {
+			int row = edits.getRow(i);
+			int col = edits.getCol(i);
+
+			getRegionForPosition(row, col).setSiteType(col, row, edits.getTypeIndex(i));
+		}
+
+		editsSinceBalance += edits.size();
+		siteTypeVersion++;
 	}
 
 	@Override
@@ -326,18 +672,36 @@ public class PixelFlowManager implements IPixelFlowManager{
 	}
 
 	@Override
-	public void setSiteTypes(int[][] siteTypes) {        
-        int rowChunk = rows / DIV_ROW;
-        int colChunk = cols / DIV_COL;
-        
+	public void setSiteTypes(int[][] siteTypes) {
+		synchronized (editLock) {
+			if(stepping) {
+				// The whole grid replaces the edits queued before it
+				queuedSiteTypes = new int[siteTypes.length][];
+				for(int x = 0; x < siteTypes.length; x++) {
+					queuedSiteTypes[x] = siteTypes[x].clone();
+				}
+				queuedEdits.clear();
+			} else {
+				sendSiteTypes(siteTypes);
+			}
+		}
+	}
+
+	/**
+	 * Send the site types of the whole grid to the regions, the caller must hold editLock and
+	 * no step may be running
+	 * @param siteTypes
+	 */
+	private void sendSiteTypes(int[][] siteTypes) {
+		siteTypeVersion++;
         for(int x = 0; x < regions.length; x++) {
             for(int y = 0; y < regions[x].length; y++) {
             	PixelFlowRegion region = regions[x][y];
-            	
-            	int xStart = region.getX();
-            	int yStart = region.getY();
-            	int width = region.getWidth();
-            	int height = region.getHeight();
+
+            	int xStart = decomposition.getColStart(x);
+            	int yStart = decomposition.getRowStart(y);
+            	int width = decomposition.getWidth(x);
+            	int height = decomposition.getHeight(y);
             	int [][] regionTypes = new int [width][height];
                 
                 for(int tempX = 0; tempX < width; tempX++) {
@@ -349,6 +713,10 @@ public class PixelFlowManager implements IPixelFlowManager{
                 region.setSiteTypes(regionTypes);
             }
         }
+
+        if(loadBalancing) {
+        	rebalance();
+        }
 	}
 
 }
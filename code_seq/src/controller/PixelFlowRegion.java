@@ -3,10 +3,15 @@ package controller;
 import java.util.HashMap;
 import java.util.Map;
 
+import model.ActivityMask;
+import model.GridSnapshot;
 import model.Site;
+import model.SiteGrid;
 import model.SiteObstacle;
+import model.SiteRuns;
 import model.SiteSource;
 import model.SiteType;
+import model.SourceValues;
 
 /**
  * This class is responsible to simulate a particular region of the simulation grid.
@@ -23,32 +28,68 @@ public class PixelFlowRegion {
 		
 		private final int index;
 		
+		private static final Direction [] VALUES = values();
+		
 		Direction(int index){
 			this.index = index;
 		}		
 	}
 	
 	private final SiteType [] siteTypes;
-    private Site[][] sites;
-    private Site[][] tempSites;
+
+    // Values of the sources, computed once per step. The global flows are read at other
+    // times, possibly while a step is computed, so they have their own table.
+    private final SourceValues stepSourceValues;
+    private final SourceValues querySourceValues;
+
+    // Whether the temperature of the sites of a type changes, indexed by type index
+    private final boolean [] heatedTypes;
+
+    // Runs of sites of the same type of every column, built again at the start of a step
+    // after the types changed
+    private SiteRuns runs;
+    private boolean typesChanged = true;
+
+    private SiteGrid sites;
+    private SiteGrid previousSites;
+    private int previousX, previousY;
     private int x, y;
     private final double deltaTimePerIteration;
     
     private int globalRows, globalCols;
     
+    private boolean [] temperatureUpdated = new boolean[0];
+    
+    // Tiles of the sites reached by the flows, the other sites are skipped
+    private ActivityMask activity;
+    
     private double [][] neighbourFlows = new double[Direction.values().length][];
     
+    // Whether the flows of the sites are stored as floats
+    private boolean singlePrecisionFlows = false;
+    
+    // Computes several sites at once, or null to compute them one after the other. Every
+    // region has its own kernel, the shared one only tells how many sites it computes.
+    private static final SiteKernel VECTOR_KERNEL = loadVectorKernel();
+    private SiteKernel kernel = loadVectorKernel();
+    
     private Map<Direction, PixelFlowRegion> neighbours = new HashMap<>();
     
     public PixelFlowRegion(){
         sites = null;
         deltaTimePerIteration = 0;
         siteTypes = null;
+        stepSourceValues = null;
+        querySourceValues = null;
+        heatedTypes = null;
     }
     
     public PixelFlowRegion(final double deltaTimePerIteration, SiteType [] siteTypes, String url){
     	this.deltaTimePerIteration = deltaTimePerIteration;
     	this.siteTypes = siteTypes;
+    	this.stepSourceValues = new SourceValues(siteTypes);
+    	this.querySourceValues = new SourceValues(siteTypes);
+    	this.heatedTypes = getHeatedTypes(siteTypes);
     }
     
     public void createSites(int x, int y, int width, int height, int globalCols, int globalRows, boolean copy) {
@@ -59,25 +100,77 @@ public class PixelFlowRegion {
     	this.globalCols = globalCols;
     	
     	if(sites == null || !copy) {
-    		this.sites = new Site[width][height];
-    	}else if(sites.length != width || sites[0].length != height){
-    		Site [][] newSites = new Site[width][height];
-    		
-    		for(int xLoop = 0; xLoop < sites.length && xLoop < width; xLoop++) {
-            	for(int yLoop = 0; yLoop < sites[x].length && yLoop < height; yLoop++) {
-            		newSites[xLoop][yLoop] = sites[xLoop][yLoop];
-            	}
-    		}
+    		this.sites = new SiteGrid(width, height, singlePrecisionFlows);
+    	}else if(sites.getWidth() != width || sites.getHeight() != height){
+    		SiteGrid newSites = new SiteGrid(width, height, singlePrecisionFlows);
+    		newSites.copyFrom(sites);
     		
     		this.sites = newSites;
     	}
     	
+    	if(temperatureUpdated.length != width) {
+    		temperatureUpdated = new boolean[width];
+    	}
+    	
+    	activity = new ActivityMask(width, height);
+    	activity.reset(sites, siteTypes);
+    	typesChanged = true;
+    	
     	neighbourFlows[Direction.UP.index] = new double[width];
     	neighbourFlows[Direction.DOWN.index] = new double[width];
     	neighbourFlows[Direction.LEFT.index] = new double[height];
     	neighbourFlows[Direction.RIGHT.index] = new double[height];
     }
     
+    /**
+     * If set, the flows are stored as floats, which halves the memory read and written by
+     * every step. The current sites are converted.
+     * @param singlePrecisionFlows
+     */
+    public void setSinglePrecisionFlows(boolean singlePrecisionFlows) {
+    	this.singlePrecisionFlows = singlePrecisionFlows;
+    	
+    	if(sites != null && sites.isSinglePrecision() != singlePrecisionFlows) {
+    		SiteGrid converted = new SiteGrid(sites.getWidth(), sites.getHeight(), singlePrecisionFlows);
+    		converted.copyFrom(sites);
+    		
+    		sites = converted;
+    	}
+    }
+    
+    /**
+     * Returns the kernel using the Vector API, or null if the module jdk.incubator.vector
+     * is not available or the processor has no vector registers. The kernel is loaded by
+     * name, so this class does not depend on the module.
+     * @return
+     */
+    private static SiteKernel loadVectorKernel() {
+    	try {
+    		return (SiteKernel) Class.forName("controller.VectorSiteKernel").getDeclaredConstructor().newInstance();
+    	} catch (Throwable e) {
+    		return null;
+    	}
+    }
+    
+    /**
+     * Returns the number of sites computed at once by the vector kernel, or 0 if it is not
+     * available
+     * @return
+     */
+    public static int getVectorLanes() {
+    	return VECTOR_KERNEL != null ? VECTOR_KERNEL.getLanes() : 0;
+    }
+    
+    /**
+     * If set and available, the sites of the same type are computed several at once by the
+     * vector kernel, otherwise one after the other. The flows stored as floats are always
+     * computed one after the other.
+     * @param vectorKernel
+     */
+    public void setVectorKernel(boolean vectorKernel) {
+    	kernel = vectorKernel ? loadVectorKernel() : null;
+    }
+    
     private PixelFlowRegion fake;
     
     public void setNeighbour(PixelFlowRegion neighbour, Direction dir) {
@@ -86,40 +179,55 @@ public class PixelFlowRegion {
     }
     
     public void initSites(int defaultSiteTypeIndex, float initialTemperature, boolean copy) {
-    	for(int x = 0; x < sites.length; x++) {
-        	for(int y = 0; y < sites[x].length; y++) {
-        		if(copy && sites[x][y] != null) {
-        			sites[x][y].resetFlows();
-        			sites[x][y].setTemperature(initialTemperature);
-        		}else {
-        			sites[x][y] = new Site(defaultSiteTypeIndex, initialTemperature);
+    	for(int x = 0; x < sites.getWidth(); x++) {
+        	for(int y = 0; y < sites.getHeight(); y++) {
+        		if(!copy || !sites.isSet(x, y)) {
+        			sites.setTypeIndex(x, y, defaultSiteTypeIndex);
         		}
+        		sites.resetSite(x, y, initialTemperature);
         	}
     	}
+    	
+    	activity.reset(sites, siteTypes);
+    	typesChanged = true;
     }
     
     public Site getSite(int row, int col) {
-    	return sites[col - x][row - y];
+    	return sites.getSite(col - x, row - y);
     }
     
     public void setSiteType(int col, int row, int type) {
-    	sites[col - x][row - y].setTypeIndex(type);
+    	sites.setTypeIndex(col - x, row - y, type);
+    	typesChanged = true;
+    	
+    	if(siteTypes[type] instanceof SiteSource) {
+    		activity.activate(col - x, row - y);
+    	}
     }
     
     public void setFlow(int col, int row, int flowIndex, double value) {
-    	tempSites[col - x][row - y].getFlows()[flowIndex] = value;
+    	sites.setNextFlow(flowIndex, sites.index(col - x, row - y), value);
+    	activity.activate(col - x, row - y);
     }
     
     public Site[][] getAllSites(){
-        return sites;
+        Site [][] allSites = new Site[sites.getWidth()][sites.getHeight()];
+        
+        for(int x = 0; x < allSites.length; x++) {
+            for(int y = 0; y < allSites[0].length; y++) {
+                allSites[x][y] = sites.getSite(x, y);
+            }
+        }
+        
+        return allSites;
     }
     
     public int[][] getSiteTypes() {
-        int [][] types = new int[sites.length][sites[0].length];
+        int [][] types = new int[sites.getWidth()][sites.getHeight()];
         
         for(int x = 0; x < types.length; x++) {
             for(int y = 0; y < types[0].length; y++) {
-                types[x][y] = sites[x][y].getTypeIndex();
+                types[x][y] = sites.getTypeIndex(x, y);
             }
         }
         
@@ -127,45 +235,192 @@ public class PixelFlowRegion {
     }
     
 	public void prepareFlowUpdate() {
-    	//Create copy of current sites
-    	tempSites = new Site[sites.length][sites[0].length];
-		for (int row = 0; row < tempSites.length; row++) {
-			for (int col = 0; col < tempSites[0].length; col++) {
-				tempSites[row][col] = new Site(sites[row][col].getTypeIndex(), sites[row][col].getTemperature());
+		if (typesChanged) {
+			typesChanged = false;
+			runs = new SiteRuns(sites);
+		}
+
+    	//Clear the buffer receiving the new flows, it stays empty in the inactive tiles
+		int height = sites.getHeight();
+		
+		for (int x = 0; x < sites.getWidth(); x++) {
+			for (int y = activity.getNextActiveRow(x, 0); y < height; ) {
+				int end = activity.getActiveRowsEnd(x, y);
+				
+				sites.clearNextFlows(x, y, end);
+				y = activity.getNextActiveRow(x, end);
 			}
 		}
 	}
 	
     public void updateFlows(double elapsedTime) {    	
-    	for (int x = 0; x < sites.length; x++) {
-			for (int y = 0; y < sites[0].length; y++) {
-				SiteType siteTypeXY = getSiteType(x, y);
-				if (siteTypeXY instanceof SiteSource) {
-					float sourceValue = ((SiteSource) siteTypeXY).getValue(elapsedTime);
-					
-					updateTempSite(x + 1, y, Direction.RIGHT, sourceValue);
-					updateTempSite(x - 1, y, Direction.LEFT, sourceValue);
-					updateTempSite(x, y + 1, Direction.DOWN, sourceValue);
-					updateTempSite(x, y - 1, Direction.UP, sourceValue);
-					
-				} else {
-					SiteObstacle so = (SiteObstacle) siteTypeXY;
-					double[] gammaFlowPartXY = multiply(so.getGammaMatrix(), sites[x][y].getFlows());
-					double[] betaFlowPartXY = multiply(so.getBetaMatrix(), sites[x][y].getFlows());
-					
-					updateTempSite(x + 1, y, Direction.RIGHT, gammaFlowPartXY[Direction.RIGHT.index] + betaFlowPartXY[Direction.RIGHT.index]);
-					updateTempSite(x - 1, y, Direction.LEFT, gammaFlowPartXY[Direction.LEFT.index] + betaFlowPartXY[Direction.LEFT.index]);
-					updateTempSite(x, y + 1, Direction.DOWN, gammaFlowPartXY[Direction.DOWN.index] + betaFlowPartXY[Direction.DOWN.index]);
-					updateTempSite(x, y - 1, Direction.UP, gammaFlowPartXY[Direction.UP.index] + betaFlowPartXY[Direction.UP.index]);
-				}
-			}
-		}
+    	updateFlows(0, sites.getWidth(), elapsedTime);
     	
     	sendFlowBuffers();
     }
     
+    public void updateFlowsAndTemperatures(double elapsedTime) {
+    	updateFlowsAndTemperatures(0, sites.getWidth(), elapsedTime);
+    	
+    	sendFlowBuffers();
+    }
+    
+    /**
+     * Compute the new flows sent by the sites of the columns xStart to xEnd. The columns are
+     * computed run by run, the sites of the inactive tiles have no flows to send and are
+     * skipped.
+     * @param xStart
+     * @param xEnd
+     * @param elapsedTime
+     */
+    private void updateFlows(int xStart, int xEnd, double elapsedTime) {
+    	float [] sourceValues = stepSourceValues.getValues(elapsedTime);
+    	
+    	for (int x = xStart; x < xEnd; x++) {
+    		for (int run = runs.getFirstRun(x); run < runs.getFirstRun(x + 1); run++) {
+    			int type = runs.getType(run);
+    			int runEnd = runs.getEnd(run);
+    			
+    			for (int y = activity.getNextActiveRow(x, runs.getStart(run)); y < runEnd; ) {
+    				int end = Math.min(activity.getActiveRowsEnd(x, y), runEnd);
+    				
+    				if (stepSourceValues.isSource(type)) {
+    					updateSourceFlows(x, y, end, sourceValues[type]);
+    				} else {
+    					updateObstacleFlows(x, y, end, (SiteObstacle) siteTypes[type]);
+    				}
+    				
+    				y = activity.getNextActiveRow(x, end);
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Compute the flows sent by the sources yStart to yEnd of the column x, which send the
+     * same value in the 4 directions
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param sourceValue
+     */
+    private void updateSourceFlows(int x, int yStart, int yEnd, float sourceValue) {
+    	for (int y = yStart; y < yEnd; y++) {
+    		updateTempSite(x + 1, y, Direction.RIGHT, sourceValue);
+    		updateTempSite(x - 1, y, Direction.LEFT, sourceValue);
+    		updateTempSite(x, y + 1, Direction.DOWN, sourceValue);
+    		updateTempSite(x, y - 1, Direction.UP, sourceValue);
+    	}
+    }
+    
+    /**
+     * Compute the flows sent by the sites yStart to yEnd of the column x, which all have the
+     * given obstacle type. The sites of an inner column only send flows to the sites of this
+     * region, except the first and the last one, so they are computed by the vector kernel.
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param so
+     */
+    private void updateObstacleFlows(int x, int yStart, int yEnd, SiteObstacle so) {
+    	double [][] flows = sites.getFlows();
+    	int y = yStart;
+    	
+    	if (kernel != null && flows != null && x > 0 && x < sites.getWidth() - 1) {
+    		int kernelStart = Math.max(yStart, 1);
+    		int kernelEnd = Math.min(yEnd, sites.getHeight() - 1);
+    		
+    		if (kernelStart < kernelEnd) {
+    			updateSiteFlows(x, yStart, kernelStart, so);
+    			y = kernelStart + kernel.updateFlows(flows, sites.getNextFlows(), sites.index(x, kernelStart),
+    					kernelEnd - kernelStart, sites.getHeight(), so);
+    		}
+    	}
+    	
+    	updateSiteFlows(x, y, yEnd, so);
+    }
+    
+    /**
+     * Compute one after the other the flows sent by the sites yStart to yEnd of the column x,
+     * which all have the given obstacle type
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param so
+     */
+    private void updateSiteFlows(int x, int yStart, int yEnd, SiteObstacle so) {
+    	double [][] flows = sites.getFlows();
+    	float [][] floatFlows = sites.getFloatFlows();
+    	
+    	for (int y = yStart; y < yEnd; y++) {
+    		int index = sites.index(x, y);
+    		double f0, f1, f2, f3;
+    		if (floatFlows != null) {
+    			f0 = floatFlows[0][index];
+    			f1 = floatFlows[1][index];
+    			f2 = floatFlows[2][index];
+    			f3 = floatFlows[3][index];
+    		} else {
+    			f0 = flows[0][index];
+    			f1 = flows[1][index];
+    			f2 = flows[2][index];
+    			f3 = flows[3][index];
+    		}
+    		double right, left, down, up;
+    		
+    		if (so.isPureAir()) {
+    			// All incoming flows are spread, half of them in every direction
+    			right = 0.5 * (f0 - f1 + f2 + f3);
+    			left = 0.5 * (f1 - f0 + f2 + f3);
+    			down = 0.5 * (f0 + f1 + f2 - f3);
+    			up = 0.5 * (f0 + f1 - f2 + f3);
+    		} else if (so.isPureWall()) {
+    			// All incoming flows are reflected back
+    			double gamma = so.getGamma();
+    			right = -gamma * f1;
+    			left = -gamma * f0;
+    			down = -gamma * f3;
+    			up = -gamma * f2;
+    		} else {
+    			double[][] s = so.getScatteringMatrix();
+    			right = s[0][0] * f0 + s[0][1] * f1 + s[0][2] * f2 + s[0][3] * f3;
+    			left = s[1][0] * f0 + s[1][1] * f1 + s[1][2] * f2 + s[1][3] * f3;
+    			down = s[2][0] * f0 + s[2][1] * f1 + s[2][2] * f2 + s[2][3] * f3;
+    			up = s[3][0] * f0 + s[3][1] * f1 + s[3][2] * f2 + s[3][3] * f3;
+    		}
+    		
+    		updateTempSite(x + 1, y, Direction.RIGHT, right);
+    		updateTempSite(x - 1, y, Direction.LEFT, left);
+    		updateTempSite(x, y + 1, Direction.DOWN, down);
+    		updateTempSite(x, y - 1, Direction.UP, up);
+    	}
+    }
+    
+    /**
+     * Compute the new flows of the columns xStart to xEnd and, in the same sweep, the
+     * temperatures of the sites whose new flows are complete: once column x is computed, all
+     * the flows received by the inner sites of column x - 1 are known. The columns xStart and
+     * xEnd - 1 as well as the first and last row receive flows from outside of the sweep and
+     * are updated by {@link #finishFusedFlowUpdate()}.
+     * @param xStart
+     * @param xEnd
+     * @param elapsedTime
+     */
+    private void updateFlowsAndTemperatures(int xStart, int xEnd, double elapsedTime) {
+    	int height = sites.getHeight();
+    	
+    	for (int x = xStart; x < xEnd; x++) {
+    		updateFlows(x, x + 1, elapsedTime);
+    		
+    		if (x - 1 > xStart && height > 2) {
+    			updateTemperatures(x - 1, 1, height - 1, true);
+    			temperatureUpdated[x - 1] = true;
+    		}
+    	}
+    }
+    
     private void sendFlowBuffers() {
-    	for(Direction dir : Direction.values()) {
+    	for(Direction dir : Direction.VALUES) {
     		if(neighbours.containsKey(dir)) {
     			int xTarget = x;
     			int yTarget = y;
@@ -175,13 +430,13 @@ public class PixelFlowRegion {
     				yTarget--;
     				flowDir = Direction.DOWN;
     			}else if(dir == Direction.DOWN) {
-    				yTarget += sites[0].length;
+    				yTarget += sites.getHeight();
     				flowDir = Direction.UP;
     			}else if(dir == Direction.LEFT) {
     				xTarget--;
     				flowDir = Direction.RIGHT;
     			}else if(dir == Direction.RIGHT) {
-    				xTarget += sites.length;
+    				xTarget += sites.getWidth();
     				flowDir = Direction.LEFT;
     			}
     			
@@ -196,26 +451,18 @@ public class PixelFlowRegion {
     }
     
     public void setFlows(double [] flows, int xTarget, int yTarget, Direction dir) {
-    	for(int i = 0; i < flows.length; i++) {
-    		int col;
-    		int row;
-    		
-        	if(dir == Direction.UP || dir == Direction.DOWN) {
-        		col = xTarget + i;
-        		row = yTarget ;
-        	}else {
-        		col = xTarget ;
-        		row = yTarget + i;
-        	}
-        	
-        	setFlow(col, row, dir.index, flows[i]);
+    	// The whole edge is copied at once, a column edge is contiguous in the flow arrays
+    	if(dir == Direction.UP || dir == Direction.DOWN) {
+    		sites.setNextFlowRow(dir.index, xTarget - x, yTarget - y, flows);
+    	}else {
+    		sites.setNextFlowColumn(dir.index, xTarget - x, yTarget - y, flows);
     	}
     }
     
     private void updateTempSite(int x, int y, Direction flowDir, double value) {
     	//We are in our own grid
-    	if(x >= 0 && y >= 0 && x < sites.length && y < sites[0].length) {
-    		tempSites[x][y].getFlows()[flowDir.index] = value;
+    	if(x >= 0 && y >= 0 && x < sites.getWidth() && y < sites.getHeight()) {
+    		sites.setNextFlow(flowDir.index, sites.index(x, y), value);
     	}else {    		
     		int realX = x + this.x;
     		int realY = y + this.y;
@@ -225,9 +472,9 @@ public class PixelFlowRegion {
     				neighbourFlows[Direction.LEFT.index][y] = value;
     			}else if(y < 0) {
     				neighbourFlows[Direction.UP.index][x] = value;
-    			}else if(x >= sites.length) {
+    			}else if(x >= sites.getWidth()) {
     				neighbourFlows[Direction.RIGHT.index][y] = value;
-    			}else if(y >= sites[0].length) {
+    			}else if(y >= sites.getHeight()) {
     				neighbourFlows[Direction.DOWN.index][x] = value;
     			}    			
     		}
@@ -235,60 +482,147 @@ public class PixelFlowRegion {
     }
 
 	public void finishFlowUpdate() {
-		this.sites = tempSites;
+		sites.swapFlows();
+		activity.wake(sites);
+	}
+	
+    /**
+     * Finish a step computed by updateFlowsAndTemperatures: make the new flows current and
+     * update the temperatures of the sites which were not complete during the sweep
+     */
+	public void finishFusedFlowUpdate() {
+		sites.swapFlows();
+		activity.wake(sites);
+		
+		int height = sites.getHeight();
+		
+		for (int x = 0; x < sites.getWidth(); x++) {
+			if (temperatureUpdated[x]) {
+				updateTemperatures(x, 0, 1, false);
+				updateTemperatures(x, height - 1, height, false);
+				temperatureUpdated[x] = false;
+			} else {
+				updateTemperatures(x, 0, height, false);
+			}
+		}
 	}
     
     public void updateTemperatures() {
-        for (int x = 0; x < sites.length; x++) {
-            for (int y = 0; y < sites[0].length; y++) {
-                SiteType s = getSiteType(x, y);
-
-                // If site s is a source return by default the initial temperature of the system
-                // (because here we don't care with the temperature of a source site)
-                if (s instanceof SiteSource) {
-                    continue;
-                }
-
-                // Else the site is not a source, therefore is an obstacle and has a beta and a
-                // gamma value
-                SiteObstacle so = (SiteObstacle) s;
-
-                // First retrieve the flows in the 4 directions at the point
-                double f0 = sites[x][y].getFlows()[0];
-                double f1 = sites[x][y].getFlows()[1];
-                double f2 = sites[x][y].getFlows()[2];
-                double f3 = sites[x][y].getFlows()[3];
-
-                float factor = so.getEnergyLossFactor(); // 1.0 - gamma^2 - gamma * beta - beta^2
-                float energy = (float) (factor * deltaTimePerIteration * (f0 * f0 + f1 * f1 + f2 * f2 + f3 * f3)); // [J]
-                float deltaTemperature = (float) energy / so.getEnergyNeededToIncreaseByOneDegree();
-
-                sites[x][y].addTemperature(deltaTemperature);
+        for (int x = 0; x < sites.getWidth(); x++) {
+        	updateTemperatures(x, 0, sites.getHeight(), false);
+        }
+    }
+    
+    /**
+     * Update the temperatures of the sites yStart to yEnd of the column x heated by the current
+     * or the next flows. The sites of the tiles which cannot have flows are skipped.
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param next if set, the flows of the next step, otherwise the current flows
+     */
+    private void updateTemperatures(int x, int yStart, int yEnd, boolean next) {
+        // The sites are updated by runs of sites of the same type
+        for (int run = runs.getRun(x, yStart); run < runs.getFirstRun(x + 1) && runs.getStart(run) < yEnd; run++) {
+            int type = runs.getType(run);
+
+            // The sources and the sites which need an infinite energy keep their temperature
+            if (!heatedTypes[type]) {
+                continue;
+            }
+
+            int runStart = Math.max(runs.getStart(run), yStart);
+            int runEnd = Math.min(runs.getEnd(run), yEnd);
+
+            // The next flows can also be received by the neighbours of the active tiles
+            for (int y = next ? activity.getNextAwakeRow(x, runStart) : activity.getNextActiveRow(x, runStart);
+                    y < runEnd; ) {
+                int end = Math.min(next ? activity.getAwakeRowsEnd(x, y) : activity.getActiveRowsEnd(x, y), runEnd);
+
+                updateTemperatures(x, y, end, (SiteObstacle) siteTypes[type], next);
+                y = next ? activity.getNextAwakeRow(x, end) : activity.getNextActiveRow(x, end);
             }
         }
-    	
     }
     
-    private SiteType getSiteType(int row, int col) {
-		return siteTypes[sites[row][col].getTypeIndex()];
-	}
+    /**
+     * Update the temperatures of the sites yStart to yEnd of the column x, which all have the
+     * given obstacle type
+     * @param x
+     * @param yStart
+     * @param yEnd
+     * @param so
+     * @param next if set, the flows of the next step, otherwise the current flows
+     */
+    private void updateTemperatures(int x, int yStart, int yEnd, SiteObstacle so, boolean next) {
+    	float [] temperatures = sites.getTemperatures();
+    	double [][] flows = next ? sites.getNextFlows() : sites.getFlows();
+    	float [][] floatFlows = next ? sites.getNextFloatFlows() : sites.getFloatFlows();
+    	float factor = so.getEnergyLossFactor(); // 1.0 - gamma^2 - gamma * beta - beta^2
+    	float energyNeeded = so.getEnergyNeededToIncreaseByOneDegree();
+    	int y = yStart;
+    	
+    	// As many sites as possible are computed at once, the rest one after the other
+    	if (kernel != null && flows != null) {
+    		y += kernel.updateTemperatures(flows, temperatures, sites.index(x, y), yEnd - y,
+    				factor * deltaTimePerIteration, energyNeeded);
+    	}
+    	
+    	for (; y < yEnd; y++) {
+    		// First retrieve the flows in the 4 directions at the point
+    		int index = sites.index(x, y);
+    		double f0, f1, f2, f3;
+    		if (floatFlows != null) {
+    			f0 = floatFlows[0][index];
+    			f1 = floatFlows[1][index];
+    			f2 = floatFlows[2][index];
+    			f3 = floatFlows[3][index];
+    		} else {
+    			f0 = flows[0][index];
+    			f1 = flows[1][index];
+    			f2 = flows[2][index];
+    			f3 = flows[3][index];
+    		}
+    		
+    		float energy = (float) (factor * deltaTimePerIteration * (f0 * f0 + f1 * f1 + f2 * f2 + f3 * f3)); // [J]
+    		float deltaTemperature = (float) energy / energyNeeded;
+    		
+    		temperatures[index] += deltaTemperature;
+    	}
+    }
     
-	private static double[] multiply(double[][] matrix, double[] vector) {
-		double[] result = new double[matrix.length];
-		for (int i = 0; i < result.length; i++) {
-			for (int j = 0; j < vector.length; j++) {
-				result[i] += matrix[i][j] * vector[j];
-			}
-		}
-		return result;
-	}
+    /**
+     * Returns whether the temperature of the sites of every type changes. The sources and the
+     * obstacles which need an infinite energy to get one degree warmer keep their temperature.
+     * @param siteTypes
+     * @return whether the temperature changes, indexed by type index
+     */
+    private static boolean[] getHeatedTypes(SiteType[] siteTypes) {
+    	boolean [] heated = new boolean[siteTypes.length];
+
+    	for (int i = 0; i < siteTypes.length; i++) {
+    		heated[i] = siteTypes[i] instanceof SiteObstacle
+    				&& ((SiteObstacle) siteTypes[i]).getEnergyNeededToIncreaseByOneDegree() != Float.MAX_VALUE;
+    	}
+
+    	return heated;
+    }
+
+
+    /**
+     * Copy all the sites of this region to the given snapshot of the whole grid
+     * @param snapshot
+     */
+    public void copyTo(GridSnapshot snapshot) {
+    	snapshot.copyFrom(sites, x, y);
+    }
 
     public double[][] getGlobalFlows(double elapsedTime) {
-        double [][] flows = new double[sites.length][sites[0].length];
+        double [][] flows = new double[sites.getWidth()][sites.getHeight()];
         
         for(int x = 0; x < flows.length; x++) {
             for(int y = 0; y < flows[0].length; y++) {
-                flows[x][y] = getGlobalFlow(sites[x][y], elapsedTime);
+                flows[x][y] = getGlobalFlow(x, y, elapsedTime);
             }
         }
         
@@ -296,21 +630,19 @@ public class PixelFlowRegion {
     }
     
     public double getGlobalFlowAtPosition(int row, int col, double elapsedTime) {
-        Site site = getSite(row, col);
-        
-        return getGlobalFlow(site, elapsedTime);
+        return getGlobalFlow(col - x, row - y, elapsedTime);
     }
     
-    private double getGlobalFlow(Site site, double elapsedTime) {
-        SiteType s = siteTypes[site.getTypeIndex()];
-        
-        if (s instanceof SiteSource) {
-            return ((SiteSource) s).getValue(elapsedTime);
+    private double getGlobalFlow(int x, int y, double elapsedTime) {
+        int typeIndex = sites.getTypeIndex(x, y);
+
+        if (querySourceValues.isSource(typeIndex)) {
+            return querySourceValues.getValues(elapsedTime)[typeIndex];
         }
         
         float globalFlowValue = 0.0f;
         for (int i = 0; i < 4; i++) {
-            globalFlowValue += site.getFlows()[i];
+            globalFlowValue += sites.getFlow(x, y, i);
         }
         
         return globalFlowValue;
@@ -321,7 +653,7 @@ public class PixelFlowRegion {
      * @return
      */
     public int getWidth() {
-    	return sites.length;
+    	return sites.getWidth();
     }
 
     /**
@@ -329,7 +661,7 @@ public class PixelFlowRegion {
      * @return
      */
     public int getHeight() {
-    	return sites[0].length;
+    	return sites.getHeight();
     }
     
     /**
@@ -355,8 +687,84 @@ public class PixelFlowRegion {
 	public void setSiteTypes(int[][] regionTypes) {
     	for(int x = 0; x < regionTypes.length; x++) {
             for(int y = 0; y < regionTypes[0].length; y++) {
-            	sites[x][y].setTypeIndex(regionTypes[x][y]);
+            	sites.setTypeIndex(x, y, regionTypes[x][y]);
             }
     	}
+    	
+    	activity.reset(sites, siteTypes);
+    	typesChanged = true;
+	}
+
+    /**
+     * Returns the estimated cost of each column and of each row of this region
+     * @param typeCosts cost of a cell, indexed by type index
+     * @return the column costs followed by the row costs
+     */
+	public double[][] getCosts(double[] typeCosts) {
+		double [] colCosts = new double[sites.getWidth()];
+		double [] rowCosts = new double[sites.getHeight()];
+		byte [] typeIndices = sites.getTypeIndices();
+
+		for(int x = 0; x < colCosts.length; x++) {
+			int index = sites.index(x, 0);
+
+			for(int y = 0; y < rowCosts.length; y++, index++) {
+				double cost = typeCosts[typeIndices[index]];
+				colCosts[x] += cost;
+				rowCosts[y] += cost;
+			}
+		}
+
+		return new double[][] {colCosts, rowCosts};
+	}
+
+    /**
+     * Moves this region to a new position and size on the global grid. The cells of the new
+     * area have to be set with setSites, the previous cells can be read with getPreviousSites
+     * until finishMoveSites is called.
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @param globalCols
+     * @param globalRows
+     */
+	public void moveSites(int x, int y, int width, int height, int globalCols, int globalRows) {
+		previousSites = sites;
+		previousX = this.x;
+		previousY = this.y;
+
+		createSites(x, y, width, height, globalCols, globalRows, false);
+	}
+
+    /**
+     * Returns a copy of a block of the cells this region had before it was moved
+     * @param col first column on the global grid
+     * @param row first row on the global grid
+     * @param width
+     * @param height
+     * @return
+     */
+	public SiteGrid getPreviousSites(int col, int row, int width, int height) {
+		SiteGrid block = new SiteGrid(width, height, previousSites.isSinglePrecision());
+		block.copyFrom(previousSites, col - previousX, row - previousY, 0, 0, width, height);
+
+		return block;
+	}
+
+    /**
+     * Set the cells starting at the given position on the global grid
+     * @param block
+     * @param col
+     * @param row
+     */
+	public void setSites(SiteGrid block, int col, int row) {
+		sites.copyFrom(block, 0, 0, col - x, row - y, block.getWidth(), block.getHeight());
+	}
+
+	public void finishMoveSites() {
+		previousSites = null;
+		activity.reset(sites, siteTypes);
+		typesChanged = true;
 	}
 }
@@ -0,0 +1,49 @@
+package controller;
+
+import model.SiteObstacle;
+
+/**
+ * Computes a run of consecutive sites of a column which all have the same obstacle type,
+ * several sites at once. The flows are stored with double precision, column by column
+ * like in {@link model.SiteGrid}. A kernel only computes whole groups of sites and returns
+ * how many it computed, the remaining sites of the run are left to the scalar code of
+ * {@link PixelFlowRegion}. A kernel has buffers of its own and is not thread safe, every
+ * region has its own kernel.
+ * @author beat
+ *
+ */
+interface SiteKernel {
+
+	/**
+	 * Returns the number of sites computed at once
+	 * @return
+	 */
+	int getLanes();
+
+	/**
+	 * Compute the flows sent by the sites of the run to their 4 neighbours. All the
+	 * neighbours must be sites of the same grid, the run may not touch its border.
+	 * @param flows current flows
+	 * @param nextFlows flows of the next step
+	 * @param index position of the first site of the run in the flat arrays
+	 * @param length number of sites of the run
+	 * @param height height of the grid, the distance between two neighbour columns
+	 * @param so type of all the sites of the run
+	 * @return the number of sites computed, from the first one
+	 */
+	int updateFlows(double[][] flows, double[][] nextFlows, int index, int length, int height, SiteObstacle so);
+
+	/**
+	 * Increase the temperatures of the sites of the run by the energy of their flows
+	 * @param flows
+	 * @param temperatures
+	 * @param index position of the first site of the run in the flat arrays
+	 * @param length number of sites of the run
+	 * @param energyFactor energy loss factor of the type multiplied by the duration of a step
+	 * @param energyNeeded energy needed to increase the temperature of a site by one degree
+	 * @return the number of sites computed, from the first one
+	 */
+	int updateTemperatures(double[][] flows, float[] temperatures, int index, int length, double energyFactor,
+			float energyNeeded);
+
+}
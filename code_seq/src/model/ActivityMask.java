@@ -0,0 +1,235 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which parts of a {@link SiteGrid} have flows. The grid is cut into square tiles of
+ * {@link #TILE_SIZE} sites, column by column like the sites. A tile is active once it
+ * contains a source or a flow reached one of its sites, and then stays active.
+ *
+ * The sites of an inactive tile have no flows, neither current nor next ones: they send no
+ * flows and are not heated, so they can be skipped, and their next flows need not be
+ * cleared. As a flow moves by one site per step, it can only enter an inactive
+ * tile through the sites on its border, which are checked after every step by
+ * {@link #wake(SiteGrid)}. A tile is awake if it or one of its 4 neighbours is active, only
+ * these tiles can receive flows while a step is computed.
+ * @author beat
+ *
+ */
+public class ActivityMask {
+
+	private static final int TILE_SHIFT = 5;
+
+	public static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+	private final int width, height;
+	private final int tileCols, tileRows;
+	private final boolean [] active;
+	private final boolean [] awake;
+
+	/**
+	 * Creates a mask of a grid of the given size where no tile is active
+	 * @param width
+	 * @param height
+	 */
+	public ActivityMask(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.tileCols = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+		this.tileRows = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+		this.active = new boolean[tileCols * tileRows];
+		this.awake = new boolean[tileCols * tileRows];
+	}
+
+	private int tileIndex(int x, int y) {
+		return (x >> TILE_SHIFT) * tileRows + (y >> TILE_SHIFT);
+	}
+
+	/**
+	 * Returns the first row from y on of the column x which is in an active tile, or the
+	 * height of the grid if there is none
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int getNextActiveRow(int x, int y) {
+		return getNextRow(active, x, y);
+	}
+
+	/**
+	 * Returns the first row from y on of the column x which is in an awake tile, or the
+	 * height of the grid if there is none
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int getNextAwakeRow(int x, int y) {
+		return getNextRow(awake, x, y);
+	}
+
+	/**
+	 * Returns the end of the active tiles of the column x starting at the row y
+	 * @param x
+	 * @param y a row of an active tile
+	 * @return
+	 */
+	public int getActiveRowsEnd(int x, int y) {
+		return getRowsEnd(active, x, y);
+	}
+
+	/**
+	 * Returns the end of the awake tiles of the column x starting at the row y
+	 * @param x
+	 * @param y a row of an awake tile
+	 * @return
+	 */
+	public int getAwakeRowsEnd(int x, int y) {
+		return getRowsEnd(awake, x, y);
+	}
+
+	private int getRowsEnd(boolean [] tiles, int x, int y) {
+		int tile = tileIndex(x, y);
+
+		do {
+			y = ((y >> TILE_SHIFT) + 1) << TILE_SHIFT;
+			tile++;
+		} while (y < height && tiles[tile]);
+
+		return Math.min(y, height);
+	}
+
+	private int getNextRow(boolean [] tiles, int x, int y) {
+		if (y >= height) {
+			return height;
+		}
+
+		int tile = tileIndex(x, y);
+
+		while (!tiles[tile]) {
+			y = ((y >> TILE_SHIFT) + 1) << TILE_SHIFT;
+			if (y >= height) {
+				return height;
+			}
+			tile++;
+		}
+
+		return y;
+	}
+
+	/**
+	 * Activate the tile of the site x,y
+	 * @param x
+	 * @param y
+	 */
+	public void activate(int x, int y) {
+		int tile = tileIndex(x, y);
+
+		if (!active[tile]) {
+			active[tile] = true;
+			updateAwake();
+		}
+	}
+
+	/**
+	 * Activate the tiles containing a source or a site with a current or a next flow, all
+	 * the other tiles are inactive
+	 * @param sites
+	 * @param siteTypes the site types, indexed by type index
+	 */
+	public void reset(SiteGrid sites, SiteType[] siteTypes) {
+		Arrays.fill(active, false);
+
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				int typeIndex = sites.getTypeIndex(x, y);
+
+				if (typeIndex != SiteGrid.UNSET_TYPE && siteTypes[typeIndex] instanceof SiteSource
+						|| hasFlow(sites, x, y, false) || hasFlow(sites, x, y, true)) {
+					active[tileIndex(x, y)] = true;
+				}
+			}
+		}
+
+		updateAwake();
+	}
+
+	/**
+	 * Activate the inactive tiles which received a flow on their border. Only the awake
+	 * tiles and the tiles on the border of the grid, which receive the flows of the other
+	 * regions, can have received one. Must be called every time the new flows become current.
+	 * @param sites
+	 */
+	public void wake(SiteGrid sites) {
+		boolean woken = false;
+
+		for (int tileX = 0; tileX < tileCols; tileX++) {
+			int xStart = tileX << TILE_SHIFT;
+			int xEnd = Math.min(xStart + TILE_SIZE, width);
+
+			for (int tileY = 0; tileY < tileRows; tileY++) {
+				int tile = tileX * tileRows + tileY;
+				if (active[tile] || !awake[tile] && tileX > 0 && tileX < tileCols - 1 && tileY > 0
+						&& tileY < tileRows - 1) {
+					continue;
+				}
+
+				int yStart = tileY << TILE_SHIFT;
+				int yEnd = Math.min(yStart + TILE_SIZE, height);
+
+				if (hasBorderFlow(sites, xStart, xEnd, yStart, yEnd)) {
+					active[tile] = true;
+					woken = true;
+				}
+			}
+		}
+
+		if (woken) {
+			updateAwake();
+		}
+	}
+
+	private boolean hasBorderFlow(SiteGrid sites, int xStart, int xEnd, int yStart, int yEnd) {
+		for (int y = yStart; y < yEnd; y++) {
+			if (hasFlow(sites, xStart, y, false) || hasFlow(sites, xEnd - 1, y, false)) {
+				return true;
+			}
+		}
+
+		for (int x = xStart + 1; x < xEnd - 1; x++) {
+			if (hasFlow(sites, x, yStart, false) || hasFlow(sites, x, yEnd - 1, false)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean hasFlow(SiteGrid sites, int x, int y, boolean next) {
+		int index = sites.index(x, y);
+		double [][] flows = next ? sites.getNextFlows() : sites.getFlows();
+		float [][] floatFlows = next ? sites.getNextFloatFlows() : sites.getFloatFlows();
+
+		for (int dir = 0; dir < SiteGrid.DIRECTIONS; dir++) {
+			if (flows != null ? flows[dir][index] != 0.0 : floatFlows[dir][index] != 0.0f) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void updateAwake() {
+		for (int tileX = 0; tileX < tileCols; tileX++) {
+			for (int tileY = 0; tileY < tileRows; tileY++) {
+				int tile = tileX * tileRows + tileY;
+
+				awake[tile] = active[tile]
+						|| tileX > 0 && active[tile - tileRows]
+						|| tileX < tileCols - 1 && active[tile + tileRows]
+						|| tileY > 0 && active[tile - 1]
+						|| tileY < tileRows - 1 && active[tile + 1];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+package model;
+
+import java.util.List;
+
+/**
+ * The state of all the sites of the grid after a given step, gathered from the regions in
+ * a single pass. The values are stored in flat primitive arrays, column by column
+ * (col * rows + row) like in {@link SiteGrid}. Once gathered, a snapshot is not changed
+ * any more, the arrays it returns are shared and must not be modified.
+ * @author beat
+ *
+ */
+public class GridSnapshot {
+
+	// Flows of the Site directions TOP, BOTTOM, LEFT and RIGHT. The flows are stored in the
+	// order of the directions of the regions: right, left, down and up.
+	private static final int [] SITE_DIRECTIONS = {3, 2, 1, 0};
+
+	private final int rows, cols;
+	private final long step;
+	private final double elapsedTime;
+	private final List<SiteType> siteTypes;
+
+	private final byte [] typeIndices;
+	private final float [] temperatures;
+	private final double [][] flows;
+	private final double [] globalFlows;
+
+	/**
+	 * Creates an empty snapshot, to be filled by the regions
+	 * @param rows
+	 * @param cols
+	 * @param step number of steps computed when the snapshot is taken
+	 * @param elapsedTime simulated time when the snapshot is taken
+	 * @param siteTypes the site types, indexed by type index
+	 */
+	public GridSnapshot(int rows, int cols, long step, double elapsedTime, List<SiteType> siteTypes) {
+		this.rows = rows;
+		this.cols = cols;
+		this.step = step;
+		this.elapsedTime = elapsedTime;
+		this.siteTypes = siteTypes;
+
+		this.typeIndices = new byte[rows * cols];
+		this.temperatures = new float[rows * cols];
+		this.flows = new double[SiteGrid.DIRECTIONS][rows * cols];
+		this.globalFlows = new double[rows * cols];
+	}
+
+	/**
+	 * Copy all the sites of the given grid, which starts at col,row on the global grid
+	 * @param sites
+	 * @param col
+	 * @param row
+	 */
+	public void copyFrom(SiteGrid sites, int col, int row) {
+		int height = sites.getHeight();
+
+		for(int x = 0; x < sites.getWidth(); x++) {
+			int from = sites.index(x, 0);
+			int to = index(row, col + x);
+
+			for(int dir = 0; dir < SiteGrid.DIRECTIONS; dir++) {
+				sites.copyFlows(dir, from, flows[dir], to, height);
+			}
+
+			System.arraycopy(sites.getTemperatures(), from, temperatures, to, height);
+			System.arraycopy(sites.getTypeIndices(), from, typeIndices, to, height);
+		}
+	}
+
+	/**
+	 * Computes the global flows once all sites are copied. The global flow of a source is
+	 * its value at the time of the snapshot, the one of an obstacle is the sum of its flows.
+	 */
+	public void computeGlobalFlows() {
+		SourceValues sources = new SourceValues(siteTypes.toArray(new SiteType[0]));
+		float [] sourceValues = sources.getValues(elapsedTime);
+
+		for(int index = 0; index < globalFlows.length; index++) {
+			int typeIndex = typeIndices[index];
+
+			if (sources.isSource(typeIndex)) {
+				globalFlows[index] = sourceValues[typeIndex];
+			} else {
+				float globalFlowValue = 0.0f;
+				for (int i = 0; i < SiteGrid.DIRECTIONS; i++) {
+					globalFlowValue += flows[i][index];
+				}
+
+				globalFlows[index] = globalFlowValue;
+			}
+		}
+	}
+
+	/**
+	 * Returns the position of the site row,col in the flat arrays
+	 * @param row
+	 * @param col
+	 * @return
+	 */
+	public int index(int row, int col) {
+		return col * rows + row;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	public long getStep() {
+		return step;
+	}
+
+	public double getElapsedTime() {
+		return elapsedTime;
+	}
+
+	public List<SiteType> getSiteTypes() {
+		return siteTypes;
+	}
+
+	public int getTypeIndex(int row, int col) {
+		return typeIndices[index(row, col)];
+	}
+
+	public SiteType getSiteType(int row, int col) {
+		return siteTypes.get(typeIndices[index(row, col)]);
+	}
+
+	public float getTemperature(int row, int col) {
+		return temperatures[index(row, col)];
+	}
+
+	public double getFlow(int row, int col, int direction) {
+		return flows[direction][index(row, col)];
+	}
+
+	/**
+	 * Returns the flow of the given direction of an obstacle, or the value of a source,
+	 * which sends the same value in all directions
+	 * @param row
+	 * @param col
+	 * @param direction {@link Site#TOP}, {@link Site#BOTTOM}, {@link Site#LEFT} or {@link Site#RIGHT}
+	 * @return
+	 */
+	public double getSiteFlow(int row, int col, int direction) {
+		if (getSiteType(row, col) instanceof SiteSource) {
+			return getGlobalFlow(row, col);
+		}
+
+		return getFlow(row, col, SITE_DIRECTIONS[direction]);
+	}
+
+	public double getGlobalFlow(int row, int col) {
+		return globalFlows[index(row, col)];
+	}
+
+	public byte[] getTypeIndices() {
+		return typeIndices;
+	}
+
+	public float[] getTemperatures() {
+		return temperatures;
+	}
+
+	/**
+	 * Returns the flow arrays, one per direction
+	 * @return
+	 */
+	public double[][] getFlows() {
+		return flows;
+	}
+
+	public double[] getGlobalFlows() {
+		return globalFlows;
+	}
+
+}
@@ -12,6 +12,7 @@ public class SiteObstacle extends SiteType {
 
     protected final float beta, gamma;
     protected final double[][] betaMatrix, gammaMatrix;
+    protected final double[][] scatteringMatrix;
     protected final float energyNeededToIncreaseByOneDegree;
     protected final float energyLossFactor;
     
@@ -21,6 +22,7 @@ public class SiteObstacle extends SiteType {
 	this.gamma = gamma;
 	this.betaMatrix = getBetaMatrix(beta);
 	this.gammaMatrix = getGammaMatrix(gamma);
+	this.scatteringMatrix = getScatteringMatrix(betaMatrix, gammaMatrix);
 	this.energyNeededToIncreaseByOneDegree = energyNeededToIncreaseByOneDegree;
 	this.energyLossFactor = 1.0f - (gamma * gamma) - (beta * gamma) - (beta * beta);
     }
@@ -49,6 +51,31 @@ public class SiteObstacle extends SiteType {
 	return this.gammaMatrix;
     }
     
+    /**
+     * Returns the matrix computing the outgoing flows from the incoming flows of a site,
+     * which is the sum of the beta and the gamma matrix
+     * @return
+     */
+    public double[][] getScatteringMatrix() {
+	return this.scatteringMatrix;
+    }
+    
+    /**
+     * Returns true if all incoming energy is spread (beta = 1 and gamma = 0)
+     * @return
+     */
+    public boolean isPureAir() {
+	return beta == 1.0f && gamma == 0.0f;
+    }
+    
+    /**
+     * Returns true if the incoming energy is only reflected (beta = 0)
+     * @return
+     */
+    public boolean isPureWall() {
+	return beta == 0.0f;
+    }
+    
     protected static double[][] getGammaMatrix(float gamma) {
 	double[][] gammaMatrix = {{ 0.0, -1.0,  0.0,  0.0 },
 				 { -1.0,  0.0,  0.0,  0.0 },
@@ -75,4 +102,14 @@ public class SiteObstacle extends SiteType {
 	return betaMatrix;
     }
     
+    protected static double[][] getScatteringMatrix(double[][] betaMatrix, double[][] gammaMatrix) {
+	double[][] scatteringMatrix = new double[betaMatrix.length][betaMatrix[0].length];
+	for (int i = 0; i < scatteringMatrix.length; i++) {
+	    for (int j = 0; j < scatteringMatrix[0].length; j++) {
+		scatteringMatrix[i][j] = betaMatrix[i][j] + gammaMatrix[i][j];
+	    }
+	}
+	return scatteringMatrix;
+    }
+    
 }
@@ -0,0 +1,87 @@
+package utilities;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the heap memory allocated by the current thread and the number of
+ * garbage collections which happened between {@link #start()} and {@link #stop()}.
+ * Used to check that the simulation step loop does not allocate memory.
+ * @author beat
+ *
+ */
+public class AllocationCounter {
+
+	private final com.sun.management.ThreadMXBean threadBean;
+	private final boolean supported;
+
+	private long startBytes, startCollections;
+	private long allocatedBytes, collections;
+
+	public AllocationCounter() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if(bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			threadBean = (com.sun.management.ThreadMXBean) bean;
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+			supported = true;
+		}else {
+			threadBean = null;
+			supported = false;
+		}
+	}
+
+	/**
+	 * Returns false if the JVM is not able to count the allocated memory
+	 * @return
+	 */
+	public boolean isSupported() {
+		return supported;
+	}
+
+	public void start() {
+		startCollections = getCollectionCount();
+		startBytes = getThreadAllocatedBytes();
+	}
+
+	public void stop() {
+		allocatedBytes = getThreadAllocatedBytes() - startBytes;
+		collections = getCollectionCount() - startCollections;
+	}
+
+	/**
+	 * Bytes allocated by the current thread between the last start and stop
+	 * @return
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * Garbage collections between the last start and stop
+	 * @return
+	 */
+	public long getCollections() {
+		return collections;
+	}
+
+	private long getThreadAllocatedBytes() {
+		if(!supported) {
+			return 0;
+		}
+
+		return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static long getCollectionCount() {
+		long count = 0;
+
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+
+		return count;
+	}
+
+}
@@ -0,0 +1,238 @@
+package view;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import controller.ComputeNode;
+import controller.IPixelFlowManager;
+import controller.PixelFlowManager;
+import model.DefaultSiteTypes;
+import model.GridSnapshot;
+import model.SiteGrid;
+import model.SiteSource;
+import model.SiteType;
+import utilities.AllocationCounter;
+import utilities.GridFile;
+
+/**
+ * Runs the simulation without any graphical interface, as fast as possible, and prints
+ * the throughput and the final temperatures.
+ *
+ * With -floatflows, the regions store the flows as floats. With -accuracy, the simulation
+ * is run again with double precision and the differences of the sites are reported.
+ *
+ * The sites are computed several at once if the Vector API is available
+ * (java --add-modules jdk.incubator.vector), unless -scalar is given.
+ *
+ * Usage: HeadlessSimulator [-grid file.csv] [-steps n | -time seconds] [-twopass] [-floatflows] [-accuracy]
+ *                          [-scalar] [-nodes host:cores,...]
+ *
+ * @author beat
+ *
+ */
+public class HeadlessSimulator {
+
+	private final static String DEFAULT_GRID_FILE = "default.csv";
+	private final static int DEFAULT_STEPS = 1000;
+
+	private final PixelFlowManager pixelFlowManager;
+
+	public HeadlessSimulator(GridFile gridFile) {
+		this(gridFile, null);
+	}
+
+	/**
+	 * Creates a simulation with one region per node, or with the default nodes if nodes is null
+	 * @param gridFile
+	 * @param nodes
+	 */
+	public HeadlessSimulator(GridFile gridFile, ComputeNode[] nodes) {
+		SiteType [] siteTypes = DefaultSiteTypes.create();
+
+		if(nodes == null) {
+			pixelFlowManager = new PixelFlowManager(gridFile.getRows(), gridFile.getCols(), siteTypes,
+					siteTypes[DefaultSiteTypes.AIR], DefaultSiteTypes.INITIAL_TEMPERATURE);
+		}else {
+			pixelFlowManager = new PixelFlowManager(gridFile.getRows(), gridFile.getCols(), siteTypes,
+					siteTypes[DefaultSiteTypes.AIR], DefaultSiteTypes.INITIAL_TEMPERATURE, nodes);
+		}
+		pixelFlowManager.setSiteTypes(gridFile.getSiteTypes());
+	}
+
+	public IPixelFlowManager getPixelFlowManager() {
+		return pixelFlowManager;
+	}
+
+	/**
+	 * Runs the given number of steps and returns the elapsed wall clock time in nanoseconds
+	 * @param steps
+	 * @return
+	 */
+	public long run(long steps) {
+		long t0 = System.nanoTime();
+
+		for (long done = 0; done < steps; ) {
+			int batch = (int) Math.min(steps - done, Integer.MAX_VALUE);
+			pixelFlowManager.step(batch);
+			done += batch;
+		}
+
+		return System.nanoTime() - t0;
+	}
+
+	/**
+	 * Returns the number of steps needed to simulate the given time
+	 * @param simulatedTime in seconds
+	 * @return
+	 */
+	public long getStepsForTime(double simulatedTime) {
+		return (long) Math.ceil(simulatedTime / pixelFlowManager.getDeltaTimePerIteration());
+	}
+
+	public void printReport(long steps, long nanos, AllocationCounter allocationCounter) {
+		int rows = pixelFlowManager.getRows();
+		int cols = pixelFlowManager.getCols();
+		double seconds = nanos / 1e9;
+
+		System.out.println(String.format(Locale.ROOT, "Grid: %d x %d (%d cells)", rows, cols, (long) rows * cols));
+		System.out.println("Regions: " + pixelFlowManager.getDecomposition());
+		System.out.println("Sites computed at once: " + pixelFlowManager.getVectorLanes());
+		System.out.println(String.format(Locale.ROOT, "Steps: %d in %.3f s (simulated time %.3f s)", steps, seconds,
+				pixelFlowManager.getElapsedTime()));
+		System.out.println(String.format(Locale.ROOT, "Throughput: %.2f steps/s, %.4g cells/s", steps / seconds,
+				(double) rows * cols * steps / seconds));
+
+		if (allocationCounter.isSupported()) {
+			System.out.println(String.format(Locale.ROOT, "Allocated: %d bytes (%.1f bytes/step), %d GC",
+					allocationCounter.getAllocatedBytes(), (double) allocationCounter.getAllocatedBytes() / Math.max(steps, 1),
+					allocationCounter.getCollections()));
+		}
+
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		double sum = 0;
+		long count = 0;
+
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				if (pixelFlowManager.getSiteType(row, col) instanceof SiteSource) {
+					continue;
+				}
+
+				float temperature = pixelFlowManager.getTemperatureAtPosition(row, col);
+				min = Math.min(min, temperature);
+				max = Math.max(max, temperature);
+				sum += temperature;
+				count++;
+			}
+		}
+
+		if (count > 0) {
+			System.out.println(String.format(Locale.ROOT, "Temperature: min %.4f, max %.4f, mean %.4f", min, max, sum / count));
+		}
+	}
+
+	/**
+	 * Prints the differences between the sites of this simulation and the ones of the
+	 * reference simulation, which must have computed the same number of steps
+	 * @param reference
+	 */
+	public void printAccuracyReport(HeadlessSimulator reference) {
+		GridSnapshot frame = pixelFlowManager.getSnapshot();
+		GridSnapshot expected = reference.pixelFlowManager.getSnapshot();
+
+		double maxFlowError = 0, flowErrorSquares = 0, flowSquares = 0;
+		double maxTemperatureError = 0, temperatureErrorSum = 0;
+		long count = 0;
+
+		for (int index = 0; index < expected.getTypeIndices().length; index++) {
+			if (expected.getSiteTypes().get(expected.getTypeIndices()[index]) instanceof SiteSource) {
+				continue;
+			}
+
+			for (int dir = 0; dir < SiteGrid.DIRECTIONS; dir++) {
+				double flow = expected.getFlows()[dir][index];
+				double error = Math.abs(frame.getFlows()[dir][index] - flow);
+				maxFlowError = Math.max(maxFlowError, error);
+				flowErrorSquares += error * error;
+				flowSquares += flow * flow;
+			}
+
+			double temperatureError = Math.abs(frame.getTemperatures()[index] - expected.getTemperatures()[index]);
+			maxTemperatureError = Math.max(maxTemperatureError, temperatureError);
+			temperatureErrorSum += temperatureError;
+			count++;
+		}
+
+		if (count > 0) {
+			System.out.println(String.format(Locale.ROOT, "Flow error: max %.4g, RMS %.4g (%.4g of the RMS flow)",
+					maxFlowError, Math.sqrt(flowErrorSquares / (count * SiteGrid.DIRECTIONS)),
+					flowSquares > 0 ? Math.sqrt(flowErrorSquares / flowSquares) : 0.0));
+			System.out.println(String.format(Locale.ROOT, "Temperature error: max %.4g, mean %.4g",
+					maxTemperatureError, temperatureErrorSum / count));
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		String gridFileName = DEFAULT_GRID_FILE;
+		long steps = DEFAULT_STEPS;
+		double simulatedTime = -1;
+		boolean fusedStep = true;
+		boolean singlePrecisionFlows = false;
+		boolean accuracy = false;
+		boolean vectorKernel = true;
+		ComputeNode [] nodes = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-grid")) {
+				gridFileName = args[++i];
+			} else if (args[i].equals("-steps")) {
+				steps = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-time")) {
+				simulatedTime = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-twopass")) {
+				fusedStep = false;
+			} else if (args[i].equals("-floatflows")) {
+				singlePrecisionFlows = true;
+			} else if (args[i].equals("-accuracy")) {
+				accuracy = true;
+			} else if (args[i].equals("-scalar")) {
+				vectorKernel = false;
+			} else if (args[i].equals("-nodes")) {
+				nodes = ComputeNode.parse(args[++i]);
+			} else {
+				System.err.println("Usage: HeadlessSimulator [-grid file.csv] [-steps n | -time seconds] [-twopass] [-floatflows] [-accuracy] [-scalar] [-nodes host:cores,...]");
+				System.exit(1);
+			}
+		}
+
+		GridFile gridFile = GridFile.read(new File(gridFileName));
+		HeadlessSimulator simulator = new HeadlessSimulator(gridFile, nodes);
+		simulator.getPixelFlowManager().setFusedStep(fusedStep);
+		simulator.pixelFlowManager.setSinglePrecisionFlows(singlePrecisionFlows);
+		simulator.pixelFlowManager.setVectorKernel(vectorKernel);
+
+		if (simulatedTime >= 0) {
+			steps = simulator.getStepsForTime(simulatedTime);
+		}
+
+		AllocationCounter allocationCounter = new AllocationCounter();
+		allocationCounter.start();
+		long nanos = simulator.run(steps);
+		allocationCounter.stop();
+
+		simulator.printReport(steps, nanos, allocationCounter);
+
+		if (accuracy) {
+			// The same steps with double precision flows and transfers
+			HeadlessSimulator reference = new HeadlessSimulator(gridFile, nodes);
+			reference.pixelFlowManager.setFusedStep(fusedStep);
+			long referenceNanos = reference.run(steps);
+
+			System.out.println(String.format(Locale.ROOT, "Reference (double precision): %.2f steps/s",
+					steps / (referenceNanos / 1e9)));
+			simulator.printAccuracyReport(reference);
+		}
+	}
+
+}